@@ -0,0 +1,158 @@
+package com.google.ar.core.codelab.common.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.Matrix;
+import android.os.Debug;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.ar.core.Pose;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Checks that the steady-state anchor path of the render loop allocates nothing: packing anchor
+ * poses into {@link FrameContext}, the per-anchor model matrix update and the instanced draw.
+ *
+ * <p>Runs in an offscreen GL context. ARCore frames and anchors need a live camera session, so the
+ * anchors are stood in for by {@link Pose}s, whose {@code toMatrix} is what the activity calls on
+ * each anchor pose; the ARCore getters themselves return new wrappers and are not covered.
+ *
+ * <p>Runs once in an ES 3 context, which takes the instanced draw path, and once in an ES 2
+ * context, which takes the batched path unless the driver reports ES 3 for it as well. The ES 3
+ * run is skipped on devices without ES 3.
+ */
+@RunWith(Parameterized.class)
+public final class RenderLoopAllocationTest {
+  // EGL_OPENGL_ES3_BIT_KHR, which EGL14 does not define.
+  private static final int EGL_OPENGL_ES3_BIT = 0x40;
+  private static final int WARM_UP_FRAMES = 10;
+  private static final int MEASURED_FRAMES = 100;
+  private static final float[] OBJECT_COLOR = {139.0f, 195.0f, 74.0f, 255.0f};
+
+  @Parameterized.Parameters(name = "ES {0}")
+  public static List<Integer> clientVersions() {
+    return Arrays.asList(2, 3);
+  }
+
+  @Parameterized.Parameter public int clientVersion;
+
+  private EGLDisplay display;
+  private EGLContext context;
+  private EGLSurface surface;
+
+  private final FrameContext frameContext = new FrameContext();
+  private final OcclusionObjectRenderer renderer = new OcclusionObjectRenderer();
+  private final ArrayList<Pose> anchorPoses = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+    int[] version = new int[2];
+    EGL14.eglInitialize(display, version, 0, version, 1);
+    int[] configAttributes = {
+      EGL14.EGL_RENDERABLE_TYPE, clientVersion == 3 ? EGL_OPENGL_ES3_BIT : EGL14.EGL_OPENGL_ES2_BIT,
+      EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+      EGL14.EGL_RED_SIZE, 8,
+      EGL14.EGL_GREEN_SIZE, 8,
+      EGL14.EGL_BLUE_SIZE, 8,
+      EGL14.EGL_DEPTH_SIZE, 16,
+      EGL14.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] configCount = new int[1];
+    EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, configCount, 0);
+    if (clientVersion == 3) {
+      assumeTrue("No ES 3 pbuffer EGL config", configCount[0] > 0);
+    } else {
+      assertNotEquals("No pbuffer EGL config", 0, configCount[0]);
+    }
+    context =
+        EGL14.eglCreateContext(
+            display,
+            configs[0],
+            EGL14.EGL_NO_CONTEXT,
+            new int[] {EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL14.EGL_NONE},
+            0);
+    int[] surfaceAttributes = {EGL14.EGL_WIDTH, 64, EGL14.EGL_HEIGHT, 64, EGL14.EGL_NONE};
+    surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+    EGL14.eglMakeCurrent(display, surface, surface, context);
+    if (clientVersion == 3) {
+      assertEquals(MeshInstancer.MODE_INSTANCED, MeshInstancer.detectMode());
+    }
+
+    Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    renderer.createOnGlThread(appContext, "models/box.mesh", "models/box_texture.png");
+
+    Matrix.setLookAtM(frameContext.getViewMatrix(), 0, 0f, 1f, 1f, 0f, 0f, 0f, 0f, 1f, 0f);
+    Matrix.perspectiveM(frameContext.getProjectionMatrix(), 0, 60f, 1f, 0.1f, 100f);
+    float[] colorCorrection = frameContext.getColorCorrectionRgba();
+    colorCorrection[0] = colorCorrection[1] = colorCorrection[2] = colorCorrection[3] = 1f;
+    for (int i = 0; i < OcclusionObjectRenderer.getMaxInstances(); i++) {
+      anchorPoses.add(Pose.makeTranslation(0.1f * (i % 6), 0f, -0.1f * (i / 6)));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    renderer.release();
+    EGL14.eglMakeCurrent(
+        display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    if (surface != null) {
+      EGL14.eglDestroySurface(display, surface);
+    }
+    if (context != null) {
+      EGL14.eglDestroyContext(display, context);
+    }
+    EGL14.eglTerminate(display);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation") // The allocation counters are deprecated but still work on ART.
+  public void steadyStateFramesDoNotAllocate() {
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      drawFrame();
+    }
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    for (int i = 0; i < MEASURED_FRAMES; i++) {
+      drawFrame();
+    }
+    Debug.stopAllocCounting();
+    assertEquals(
+        "Objects allocated in " + MEASURED_FRAMES + " frames", 0, Debug.getThreadAllocCount());
+  }
+
+  /** The anchor part of DepthCodelabActivity.onDrawFrame. */
+  private void drawFrame() {
+    float[] anchorMatrices = frameContext.getInstanceMatrices();
+    int anchorCount = 0;
+    for (int i = 0;
+        i < anchorPoses.size() && anchorCount < OcclusionObjectRenderer.getMaxInstances();
+        i++) {
+      anchorPoses.get(i).toMatrix(anchorMatrices, anchorCount * 16);
+      anchorCount++;
+    }
+    renderer.updateModelMatrix(anchorMatrices, 1.0f);
+    renderer.drawInstances(
+        frameContext.getViewMatrix(),
+        frameContext.getProjectionMatrix(),
+        frameContext.getColorCorrectionRgba(),
+        OBJECT_COLOR,
+        anchorMatrices,
+        anchorCount);
+  }
+}
@@ -0,0 +1,33 @@
+// Draws the guidance reticle (a ring) and the orientation bubble (a disc) from their signed
+// distance functions, with one pixel of antialiasing. Positions and sizes are in window pixels.
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+
+uniform vec2 u_RingCenter;
+uniform float u_RingRadius;
+uniform float u_RingHalfWidth;
+uniform vec4 u_RingColor;
+
+uniform vec2 u_BubbleCenter;
+uniform float u_BubbleRadius;
+uniform vec4 u_BubbleColor;
+
+void main() {
+  vec2 p = gl_FragCoord.xy;
+  float ringDistance = abs(length(p - u_RingCenter) - u_RingRadius) - u_RingHalfWidth;
+  float bubbleDistance = length(p - u_BubbleCenter) - u_BubbleRadius;
+  float ringCoverage = u_RingColor.a * clamp(0.5 - ringDistance, 0.0, 1.0);
+  float bubbleCoverage = u_BubbleColor.a * clamp(0.5 - bubbleDistance, 0.0, 1.0);
+
+  // Bubble over the reticle, output premultiplied by alpha.
+  float alpha = bubbleCoverage + ringCoverage * (1.0 - bubbleCoverage);
+  if (alpha <= 0.0) {
+    discard;
+  }
+  gl_FragColor = vec4(
+      u_BubbleColor.rgb * bubbleCoverage + u_RingColor.rgb * ringCoverage * (1.0 - bubbleCoverage),
+      alpha);
+}
@@ -0,0 +1,8 @@
+// Unit quad scaled to the screen rectangle covering the reticle and the bubble.
+uniform vec4 u_Rect; // Center xy and half size zw, in normalized device coordinates.
+
+attribute vec2 a_Position;
+
+void main() {
+   gl_Position = vec4(u_Rect.xy + a_Position * u_Rect.zw, 0.0, 1.0);
+}
@@ -17,7 +17,14 @@ precision mediump float;
 
 uniform sampler2D u_Texture;
 
+#ifndef INSTANCING
+#define INSTANCING 0
+#endif
+
 uniform vec4 u_LightingParameters;
+#if INSTANCING != 0
+varying vec3 v_ViewLightDirection;
+#endif
 uniform vec4 u_MaterialParameters;
 uniform vec4 u_ColorCorrectionParameters;
 
@@ -33,7 +40,11 @@ void main() {
     const float kMiddleGrayGamma = 0.466;
 
     // Unpack lighting and material parameters for better naming.
+#if INSTANCING != 0
+    vec3 viewLightDirection = v_ViewLightDirection;
+#else
     vec3 viewLightDirection = u_LightingParameters.xyz;
+#endif
     vec3 colorShift = u_ColorCorrectionParameters.rgb;
     float averagePixelIntensity = u_ColorCorrectionParameters.a;
 
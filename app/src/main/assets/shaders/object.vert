@@ -13,8 +13,30 @@
  * limitations under the License.
  */
 
+// INSTANCING selects how the model view matrix is provided:
+// 0: one object per draw call, in u_ModelView and u_ModelViewProjection.
+// 1: ES 3 instancing, one matrix per instance in the a_ModelView attribute.
+// 2: ES 2 batching, the mesh is repeated BATCH_SIZE times and a_InstanceIndex picks the matrix.
+#ifndef INSTANCING
+#define INSTANCING 0
+#endif
+
+#if INSTANCING == 1
+attribute mat4 a_ModelView;
+#elif INSTANCING == 2
+uniform mat4 u_ModelViews[BATCH_SIZE];
+attribute float a_InstanceIndex;
+#else
 uniform mat4 u_ModelView;
 uniform mat4 u_ModelViewProjection;
+#endif
+
+#if INSTANCING != 0
+uniform mat4 u_Projection;
+// Light direction in model space; the view space direction depends on each instance's matrix.
+uniform vec3 u_LightDirection;
+varying vec3 v_ViewLightDirection;
+#endif
 
 attribute vec4 a_Position;
 attribute vec3 a_Normal;
@@ -25,8 +47,20 @@ varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
 
 void main() {
-    v_ViewPosition = (u_ModelView * a_Position).xyz;
-    v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
+#if INSTANCING == 1
+    mat4 modelView = a_ModelView;
+#elif INSTANCING == 2
+    mat4 modelView = u_ModelViews[int(a_InstanceIndex)];
+#else
+    mat4 modelView = u_ModelView;
+#endif
+    v_ViewPosition = (modelView * a_Position).xyz;
+    v_ViewNormal = normalize((modelView * vec4(a_Normal, 0.0)).xyz);
     v_TexCoord = a_TexCoord;
+#if INSTANCING != 0
+    v_ViewLightDirection = normalize((modelView * vec4(u_LightDirection, 0.0)).xyz);
+    gl_Position = u_Projection * (modelView * a_Position);
+#else
     gl_Position = u_ModelViewProjection * a_Position;
+#endif
 }
@@ -83,13 +83,16 @@ public final class DisplayRotationHelper implements DisplayListener {
    * function will also clear the 'pending update' (viewportChanged) flag.
    *
    * @param session the {@link Session} object to update if display geometry changed.
+   * @return whether the display geometry was updated.
    */
-  public void updateSessionIfNeeded(Session session) {
+  public boolean updateSessionIfNeeded(Session session) {
     if (viewportChanged) {
       int displayRotation = display.getRotation();
       session.setDisplayGeometry(displayRotation, viewportWidth, viewportHeight);
       viewportChanged = false;
+      return true;
     }
+    return false;
   }
 
   /**
@@ -136,6 +139,11 @@ public final class DisplayRotationHelper implements DisplayListener {
     return (sensorOrientation - displayOrientation + 360) % 360;
   }
 
+  /** Returns the rotation of the display from the device's natural orientation, in degrees. */
+  public int getDisplayRotationDegrees() {
+    return toDegrees(display.getRotation());
+  }
+
   private int toDegrees(int rotation) {
     switch (rotation) {
       case Surface.ROTATION_0:
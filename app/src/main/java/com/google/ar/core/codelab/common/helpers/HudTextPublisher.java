@@ -0,0 +1,135 @@
+package com.google.ar.core.codelab.common.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.widget.TextView;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Shows numbers published by the render thread in text views, without allocating or touching the
+ * views off the UI thread.
+ *
+ * <p>The render thread calls {@link #publish} every frame; each value is a single atomic write of
+ * its float bits. The UI thread samples the values at a fixed rate and only for fields whose
+ * displayed text would change formats the number into a reused char buffer and sets it with
+ * {@link TextView#setText(char[], int, int)}. Fields are added on the UI thread before {@link
+ * #start()}.
+ */
+public final class HudTextPublisher {
+  private static final int MAX_FIELDS = 8;
+  private static final int BUFFER_SIZE = 32;
+  private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000};
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final long periodMs;
+
+  private final AtomicIntegerArray values = new AtomicIntegerArray(MAX_FIELDS);
+  private final TextView[] views = new TextView[MAX_FIELDS];
+  private final int[] decimals = new int[MAX_FIELDS];
+  private final char[][] suffixes = new char[MAX_FIELDS][];
+  private final char[][] buffers = new char[MAX_FIELDS][];
+  // Displayed value scaled by 10^decimals, so only changes of the visible text trigger updates.
+  private final long[] shownValues = new long[MAX_FIELDS];
+  private final boolean[] shown = new boolean[MAX_FIELDS];
+  private int fieldCount;
+  private boolean running;
+
+  private final Runnable tick =
+      new Runnable() {
+        @Override
+        public void run() {
+          if (!running) {
+            return;
+          }
+          refresh();
+          handler.postAtTime(this, SystemClock.uptimeMillis() + periodMs);
+        }
+      };
+
+  /** @param rateHz how often the views are refreshed at most, e.g. 10 to 15. */
+  public HudTextPublisher(int rateHz) {
+    periodMs = 1000L / Math.max(1, rateHz);
+  }
+
+  /**
+   * Adds a field shown in {@code view}.
+   *
+   * @param decimals digits after the decimal point, 0 to 4.
+   * @param suffix text appended after the number, e.g. a unit.
+   * @return the field index to pass to {@link #publish}.
+   */
+  public int addField(TextView view, int decimals, String suffix) {
+    if (fieldCount == MAX_FIELDS) {
+      throw new IllegalStateException("Too many HUD fields.");
+    }
+    int field = fieldCount++;
+    views[field] = view;
+    this.decimals[field] = Math.max(0, Math.min(POWERS_OF_TEN.length - 1, decimals));
+    suffixes[field] = suffix.toCharArray();
+    buffers[field] = new char[BUFFER_SIZE + suffixes[field].length];
+    return field;
+  }
+
+  /** Publishes the latest value of {@code field}. Safe to call from any thread. */
+  public void publish(int field, float value) {
+    values.set(field, Float.floatToRawIntBits(value));
+  }
+
+  /** Starts refreshing the views. Call from {@code Activity#onResume()}. */
+  public void start() {
+    if (!running) {
+      running = true;
+      handler.post(tick);
+    }
+  }
+
+  /** Stops refreshing the views. Call from {@code Activity#onPause()}. */
+  public void stop() {
+    running = false;
+    handler.removeCallbacks(tick);
+  }
+
+  private void refresh() {
+    for (int field = 0; field < fieldCount; field++) {
+      float value = Float.intBitsToFloat(values.get(field));
+      if (Float.isNaN(value) || Float.isInfinite(value)) {
+        continue;
+      }
+      long scaled = Math.round(value * POWERS_OF_TEN[decimals[field]]);
+      if (shown[field] && scaled == shownValues[field]) {
+        continue;
+      }
+      shown[field] = true;
+      shownValues[field] = scaled;
+      int length = format(scaled, decimals[field], suffixes[field], buffers[field]);
+      views[field].setText(buffers[field], 0, length);
+    }
+  }
+
+  /** Writes {@code scaled / 10^decimals} with a fixed number of decimals and the suffix. */
+  static int format(long scaled, int decimals, char[] suffix, char[] out) {
+    boolean negative = scaled < 0;
+    long magnitude = Math.abs(scaled);
+    // Digits are produced right to left into the end of the number area, then moved to the front.
+    int end = BUFFER_SIZE;
+    int position = end;
+    int digits = 0;
+    do {
+      if (digits == decimals && decimals > 0) {
+        out[--position] = '.';
+      }
+      out[--position] = (char) ('0' + magnitude % 10);
+      magnitude /= 10;
+      digits++;
+    } while (magnitude > 0 || digits <= decimals);
+    if (negative) {
+      out[--position] = '-';
+    }
+    int length = end - position;
+    System.arraycopy(out, position, out, 0, length);
+    System.arraycopy(suffix, 0, out, length, suffix.length);
+    return length + suffix.length;
+  }
+}
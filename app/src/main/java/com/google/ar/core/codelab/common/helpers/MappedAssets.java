@@ -0,0 +1,90 @@
+package com.google.ar.core.codelab.common.helpers;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only access to APK assets as {@link ByteBuffer}s.
+ *
+ * <p>Assets stored uncompressed (see {@code aaptOptions.noCompress} in the app's build.gradle) are
+ * memory mapped straight from the APK, so reading them costs no copy and no heap. Compressed assets
+ * are inflated into a direct buffer instead. The most recently used buffers are kept, so loading
+ * the same asset again, e.g. after the GL context is recreated, does not touch the APK.
+ */
+public final class MappedAssets {
+  private static final int MAX_CACHED_ASSETS = 16;
+
+  // Least recently used first.
+  private static final Map<String, ByteBuffer> cache =
+      new LinkedHashMap<String, ByteBuffer>(MAX_CACHED_ASSETS, 0.75f, /*accessOrder=*/ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ByteBuffer> eldest) {
+          return size() > MAX_CACHED_ASSETS;
+        }
+      };
+
+  private MappedAssets() {}
+
+  /**
+   * Returns the contents of the asset {@code assetName}. The buffer is read-only, big endian and
+   * positioned at 0; every call returns a new view, so callers may change its position, limit and
+   * byte order freely.
+   */
+  public static synchronized ByteBuffer map(Context context, String assetName)
+      throws IOException {
+    ByteBuffer buffer = cache.get(assetName);
+    if (buffer == null) {
+      buffer = load(context, assetName);
+      cache.put(assetName, buffer);
+    }
+    return buffer.asReadOnlyBuffer();
+  }
+
+  private static ByteBuffer load(Context context, String assetName) throws IOException {
+    AssetFileDescriptor descriptor;
+    try {
+      descriptor = context.getAssets().openFd(assetName);
+    } catch (FileNotFoundException e) {
+      // Compressed in the APK, so there is no file region to map.
+      return read(context, assetName);
+    }
+    try (FileInputStream input = descriptor.createInputStream()) {
+      // The mapping stays valid after the channel is closed.
+      return input
+          .getChannel()
+          .map(
+              FileChannel.MapMode.READ_ONLY,
+              descriptor.getStartOffset(),
+              descriptor.getDeclaredLength());
+    } finally {
+      descriptor.close();
+    }
+  }
+
+  private static ByteBuffer read(Context context, String assetName) throws IOException {
+    try (InputStream input = context.getAssets().open(assetName)) {
+      byte[] chunk = new byte[8192];
+      ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(input.available(), chunk.length));
+      int read;
+      while ((read = input.read(chunk)) != -1) {
+        if (buffer.remaining() < read) {
+          ByteBuffer larger = ByteBuffer.allocateDirect(2 * buffer.capacity() + read);
+          buffer.flip();
+          larger.put(buffer);
+          buffer = larger;
+        }
+        buffer.put(chunk, 0, read);
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+}
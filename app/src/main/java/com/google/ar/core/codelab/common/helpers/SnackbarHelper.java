@@ -15,15 +15,23 @@
 package com.google.ar.core.codelab.common.helpers;
 
 import android.app.Activity;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.TextView;
 
 import com.google.android.material.snackbar.BaseTransientBottomBar;
 import com.google.android.material.snackbar.Snackbar;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Helper to manage the sample snackbar. Hides the Android boilerplate code, and exposes simpler
  * methods.
+ *
+ * <p>{@link #publishStatus} is a coalescing channel for status messages that the render thread
+ * refreshes on every frame: the message goes into an atomic slot and the UI thread applies the
+ * latest one at most once per vsync, and only if it changed. Must be created on the UI thread.
  */
 public final class SnackbarHelper {
   private static final int BACKGROUND_COLOR = 0xbf323232;
@@ -32,6 +40,17 @@ public final class SnackbarHelper {
   private int maxLines = 2;
   private String lastMessage = "";
 
+  // Status channel. The slot holds the latest published message; publishers compare by reference,
+  // so constant strings make unchanged messages free.
+  private final Choreographer choreographer = Choreographer.getInstance();
+  private final AtomicReference<String> pendingStatus = new AtomicReference<>();
+  private final AtomicBoolean statusScheduled = new AtomicBoolean();
+  private final Choreographer.FrameCallback applyStatusCallback = frameTimeNanos -> applyStatus();
+  private volatile Activity statusActivity;
+  // UI thread only.
+  private String shownStatus;
+  private boolean showingStatus;
+
   public boolean isShowing() {
     return messageSnackbar != null;
   }
@@ -44,6 +63,38 @@ public final class SnackbarHelper {
     }
   }
 
+  /**
+   * Publishes a status message from any thread, typically every frame from the render thread.
+   * Returns immediately if the message is the one last published, and otherwise schedules at most
+   * one UI update for the next vsync. Empty messages are ignored, like in {@link #showMessage}.
+   */
+  public void publishStatus(Activity activity, String message) {
+    if (message.isEmpty() || pendingStatus.getAndSet(message) == message) {
+      return;
+    }
+    statusActivity = activity;
+    if (statusScheduled.compareAndSet(false, true)) {
+      choreographer.postFrameCallback(applyStatusCallback);
+    }
+  }
+
+  /** Applies the latest published status. Runs on the UI thread at vsync. */
+  private void applyStatus() {
+    // Cleared before reading, so a status published from here on schedules another callback.
+    statusScheduled.set(false);
+    String status = pendingStatus.get();
+    if (status == null || status.equals(shownStatus)) {
+      return;
+    }
+    shownStatus = status;
+    if (showingStatus && messageSnackbar != null) {
+      messageSnackbar.setText(status);
+      return;
+    }
+    makeAndShow(statusActivity, status, DismissBehavior.HIDE);
+    showingStatus = true;
+  }
+
   /** Shows a snackbar with a given message, and a dismiss button. */
   public void showMessageWithDismiss(Activity activity, String message) {
     show(activity, message, DismissBehavior.SHOW);
@@ -66,12 +117,15 @@ public final class SnackbarHelper {
       return;
     }
     lastMessage = "";
+    pendingStatus.set(null);
     Snackbar messageSnackbarToHide = messageSnackbar;
     messageSnackbar = null;
     activity.runOnUiThread(
         new Runnable() {
           @Override
           public void run() {
+            shownStatus = null;
+            showingStatus = false;
             messageSnackbarToHide.dismiss();
           }
         });
@@ -87,39 +141,48 @@ public final class SnackbarHelper {
         new Runnable() {
           @Override
           public void run() {
-            messageSnackbar =
-                Snackbar.make(
-                    activity.findViewById(android.R.id.content),
-                    message,
-                    Snackbar.LENGTH_INDEFINITE);
-            messageSnackbar.getView().setBackgroundColor(BACKGROUND_COLOR);
-            if (dismissBehavior != DismissBehavior.HIDE) {
-              messageSnackbar.setAction(
-                  "Dismiss",
-                  new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                      messageSnackbar.dismiss();
-                    }
-                  });
-              if (dismissBehavior == DismissBehavior.FINISH) {
-                messageSnackbar.addCallback(
-                    new BaseTransientBottomBar.BaseCallback<Snackbar>() {
-                      @Override
-                      public void onDismissed(Snackbar transientBottomBar, int event) {
-                        super.onDismissed(transientBottomBar, event);
-                        activity.finish();
-                      }
-                    });
-              }
-            }
-            ((TextView)
-                    messageSnackbar
-                        .getView()
-                        .findViewById(com.google.android.material.R.id.snackbar_text))
-                .setMaxLines(maxLines);
-            messageSnackbar.show();
+            // The snackbar no longer shows the status; the next status creates a new one.
+            shownStatus = null;
+            showingStatus = false;
+            makeAndShow(activity, message, dismissBehavior);
           }
         });
   }
+
+  /** Creates and shows the snackbar. Must run on the UI thread. */
+  private void makeAndShow(
+      final Activity activity, final String message, final DismissBehavior dismissBehavior) {
+    messageSnackbar =
+        Snackbar.make(
+            activity.findViewById(android.R.id.content),
+            message,
+            Snackbar.LENGTH_INDEFINITE);
+    messageSnackbar.getView().setBackgroundColor(BACKGROUND_COLOR);
+    if (dismissBehavior != DismissBehavior.HIDE) {
+      messageSnackbar.setAction(
+          "Dismiss",
+          new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+              messageSnackbar.dismiss();
+            }
+          });
+      if (dismissBehavior == DismissBehavior.FINISH) {
+        messageSnackbar.addCallback(
+            new BaseTransientBottomBar.BaseCallback<Snackbar>() {
+              @Override
+              public void onDismissed(Snackbar transientBottomBar, int event) {
+                super.onDismissed(transientBottomBar, event);
+                activity.finish();
+              }
+            });
+      }
+    }
+    ((TextView)
+            messageSnackbar
+                .getView()
+                .findViewById(com.google.android.material.R.id.snackbar_text))
+        .setMaxLines(maxLines);
+    messageSnackbar.show();
+  }
 }
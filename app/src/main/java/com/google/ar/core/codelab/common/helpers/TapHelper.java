@@ -19,16 +19,50 @@ import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 /**
- * Helper to detect taps using Android GestureDetector, and pass the taps between UI thread and
- * render thread.
+ * Helper to detect taps, long presses and drags using Android GestureDetector, and pass them
+ * between UI thread and render thread.
+ *
+ * <p>Gestures are copied into a single-producer single-consumer ring buffer of primitive records,
+ * so no {@link MotionEvent} is retained after the framework recycles it, no lock is taken on
+ * either thread and nothing is allocated per gesture. The UI thread is the only producer and the
+ * render thread, which calls {@link #drain}, the only consumer.
  */
 public final class TapHelper implements OnTouchListener {
+  /** A single tap. */
+  public static final int ACTION_TAP = 0;
+  /** A long press, reported once when it is recognised. */
+  public static final int ACTION_LONG_PRESS = 1;
+  /** One step of a drag, reported with the current finger position. */
+  public static final int ACTION_DRAG = 2;
+
+  /** Receives queued gestures on the render thread. */
+  public interface GestureConsumer {
+    /**
+     * @param action one of {@link #ACTION_TAP}, {@link #ACTION_LONG_PRESS}, {@link #ACTION_DRAG}.
+     * @param x horizontal position in view pixels.
+     * @param y vertical position in view pixels.
+     * @param eventTime event time in {@code SystemClock.uptimeMillis()} time base.
+     */
+    void onGesture(int action, float x, float y, long eventTime);
+  }
+
+  // Must be a power of two. Drags report every move, so leave room for a few frames of them.
+  private static final int CAPACITY = 64;
+  private static final int MASK = CAPACITY - 1;
+
+  private final float[] xs = new float[CAPACITY];
+  private final float[] ys = new float[CAPACITY];
+  private final long[] eventTimes = new long[CAPACITY];
+  private final int[] actions = new int[CAPACITY];
+  // Monotonic counters; the slot of a record is its counter value masked with MASK. The volatile
+  // write of writeIndex publishes the record fields written before it, and the volatile write of
+  // readIndex hands the slot back to the producer.
+  private volatile int writeIndex;
+  private volatile int readIndex;
+
   private final GestureDetector gestureDetector;
-  private final BlockingQueue<MotionEvent> queuedSingleTaps = new ArrayBlockingQueue<>(16);
 
   /**
    * Creates the tap helper.
@@ -42,8 +76,19 @@ public final class TapHelper implements OnTouchListener {
             new GestureDetector.SimpleOnGestureListener() {
               @Override
               public boolean onSingleTapUp(MotionEvent e) {
-                // Queue tap if there is space. Tap is lost if queue is full.
-                queuedSingleTaps.offer(e);
+                offer(ACTION_TAP, e);
+                return true;
+              }
+
+              @Override
+              public void onLongPress(MotionEvent e) {
+                offer(ACTION_LONG_PRESS, e);
+              }
+
+              @Override
+              public boolean onScroll(
+                  MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                offer(ACTION_DRAG, e2);
                 return true;
               }
 
@@ -54,13 +99,35 @@ public final class TapHelper implements OnTouchListener {
             });
   }
 
+  /** Queues a gesture if there is space. The gesture is lost if the buffer is full. */
+  private void offer(int action, MotionEvent e) {
+    int write = writeIndex;
+    if (write - readIndex == CAPACITY) {
+      return;
+    }
+    int slot = write & MASK;
+    xs[slot] = e.getX();
+    ys[slot] = e.getY();
+    eventTimes[slot] = e.getEventTime();
+    actions[slot] = action;
+    writeIndex = write + 1;
+  }
+
   /**
-   * Polls for a tap.
+   * Passes every queued gesture to {@code consumer}, oldest first. Call once per frame on the
+   * render thread.
    *
-   * @return if a tap was queued, a MotionEvent for the tap. Otherwise null if no taps are queued.
+   * @return the number of gestures drained.
    */
-  public MotionEvent poll() {
-    return queuedSingleTaps.poll();
+  public int drain(GestureConsumer consumer) {
+    int read = readIndex;
+    int write = writeIndex;
+    for (int i = read; i != write; i++) {
+      int slot = i & MASK;
+      consumer.onGesture(actions[slot], xs[slot], ys[slot], eventTimes[slot]);
+    }
+    readIndex = write;
+    return write - read;
   }
 
   @Override
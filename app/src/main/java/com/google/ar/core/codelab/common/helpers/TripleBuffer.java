@@ -0,0 +1,57 @@
+package com.google.ar.core.codelab.common.helpers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free hand-off of a mutable value from one producer thread to one consumer thread.
+ *
+ * <p>Three preallocated slots rotate between the producer (back), the consumer (front) and an
+ * exchange slot (middle). The producer fills {@link #getWriteSlot()} and calls {@link #publish()};
+ * the consumer calls {@link #update()} and reads {@link #getReadSlot()}. Neither side ever blocks
+ * or allocates, and the consumer never sees a slot the producer is still writing. Only one producer
+ * thread and one consumer thread may use an instance.
+ */
+public final class TripleBuffer<T> {
+  private static final int INDEX_MASK = 3;
+  private static final int FRESH = 4;
+
+  private final Object[] slots;
+  // Index of the exchange slot, plus FRESH when it holds data the consumer has not taken yet.
+  private final AtomicInteger middle = new AtomicInteger(2);
+  private int back = 0;
+  private int front = 1;
+
+  public TripleBuffer(T first, T second, T third) {
+    slots = new Object[] {first, second, third};
+  }
+
+  /** Slot the producer may write. Only valid until the next {@link #publish()}. */
+  @SuppressWarnings("unchecked")
+  public T getWriteSlot() {
+    return (T) slots[back];
+  }
+
+  /** Makes the write slot visible to the consumer and hands the producer a new one. */
+  public void publish() {
+    back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+  }
+
+  /**
+   * Swaps in the most recently published slot, if any.
+   *
+   * @return true if {@link #getReadSlot()} now returns newer data than before.
+   */
+  public boolean update() {
+    if ((middle.get() & FRESH) == 0) {
+      return false;
+    }
+    front = middle.getAndSet(front) & INDEX_MASK;
+    return true;
+  }
+
+  /** Slot the consumer may read. Stays stable until the next {@link #update()}. */
+  @SuppressWarnings("unchecked")
+  public T getReadSlot() {
+    return (T) slots[front];
+  }
+}
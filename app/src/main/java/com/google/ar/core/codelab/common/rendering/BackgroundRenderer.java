@@ -146,6 +146,11 @@ public class BackgroundRenderer {
     this.depthTextureId = depthTextureId;
   }
 
+  /** Switches to another depth texture, e.g. after the depth texture was recreated. */
+  public void setDepthTexture(int depthTextureId) {
+    this.depthTextureId = depthTextureId;
+  }
+
   /**
    * Draws the AR background image. The image will be drawn such that virtual content rendered with
    * the matrices provided by {@link com.google.ar.core.Camera#getViewMatrix(float[], int)} and
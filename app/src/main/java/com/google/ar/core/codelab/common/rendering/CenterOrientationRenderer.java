@@ -21,8 +21,9 @@ public class CenterOrientationRenderer extends View {
     private int y0;
     private int radius;
 
-    private int ratio = 9;
+    private volatile int ratio = 9;
     private OrientationHandler orientationHandler; // Add this variable
+    private final OrientationHandler.Snapshot orientation = new OrientationHandler.Snapshot();
 
     public CenterOrientationRenderer(Context context, OrientationHandler orientationHandler) {
         super(context);
@@ -38,8 +39,9 @@ public class CenterOrientationRenderer extends View {
         paint.setColor(Color.BLUE);
 
         // Calculate the center point of the circle based on orientation values
-        float pitch = orientationHandler.getDegree2(); // Get pitch angle from OrientationHandler
-        float roll = orientationHandler.getdegree();   // Get roll angle from OrientationHandler
+        orientationHandler.getSnapshot(orientation);
+        float pitch = orientation.getPitch(); // Get pitch angle from OrientationHandler
+        float roll = orientation.getRoll();   // Get roll angle from OrientationHandler
 
         // Adjust with scaling of the circle  && pitch and roll * 5 = offset
         x0 = canvas.getWidth() / 2 + (int) (pitch * 5);
@@ -59,8 +61,11 @@ public class CenterOrientationRenderer extends View {
         invalidate();
     }
 
+    // Called from the GL thread, so the redraw is posted to the UI thread.
     public void updateCircleSize(int r){
-        ratio = r;
-        invalidate();
+        if (ratio != r) {
+            ratio = r;
+            postInvalidate();
+        }
     }
 }
\ No newline at end of file
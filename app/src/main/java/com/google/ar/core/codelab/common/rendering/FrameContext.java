@@ -0,0 +1,89 @@
+package com.google.ar.core.codelab.common.rendering;
+
+import com.google.ar.core.Camera;
+import com.google.ar.core.Coordinates2d;
+import com.google.ar.core.Frame;
+
+/**
+ * Per-frame camera matrices and scratch state for the render loop, allocated once and refilled
+ * every frame so that drawing does not create garbage.
+ *
+ * <p>The arrays returned by the getters are owned by this object and overwritten by the next
+ * update; renderers may keep a reference but must not modify them. Must be used on the GL thread.
+ */
+public final class FrameContext {
+  private static final float NEAR_PLANE = 0.1f;
+  private static final float FAR_PLANE = 100.0f;
+
+  // XY pairs of coordinates in NDC space that constitute the origin and points along the two
+  // principal axes.
+  private static final float[] NDC_BASIS = {0, 0, 1, 0, 0, 1};
+
+  private final float[] projectionMatrix = new float[16];
+  private final float[] viewMatrix = new float[16];
+  private final float[] colorCorrectionRgba = new float[4];
+  private final float[] instanceMatrices = new float[MeshInstancer.MAX_INSTANCES * 16];
+  private final float[] frameTransform = new float[6];
+  private final float[] uvTransform = new float[9];
+
+  /** Reads the projection and view matrices and the light estimate of {@code frame}. */
+  public void update(Frame frame, Camera camera) {
+    camera.getProjectionMatrix(projectionMatrix, 0, NEAR_PLANE, FAR_PLANE);
+    camera.getViewMatrix(viewMatrix, 0);
+    // The first three components are color scaling factors.
+    // The last one is the average pixel intensity in gamma space.
+    frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+  }
+
+  /**
+   * Returns a transformation matrix that when applied to screen space uvs makes them match
+   * correctly with the quad texture coords used to render the camera feed. It takes into account
+   * device orientation, so it only needs to be recomputed when the display geometry changes.
+   */
+  public float[] updateUvTransform(Frame frame) {
+    // Temporarily store the transformed points into frameTransform.
+    frame.transformCoordinates2d(
+        Coordinates2d.OPENGL_NORMALIZED_DEVICE_COORDINATES,
+        NDC_BASIS,
+        Coordinates2d.TEXTURE_NORMALIZED,
+        frameTransform);
+
+    // Convert the transformed points into an affine transform and transpose it.
+    float ndcOriginX = frameTransform[0];
+    float ndcOriginY = frameTransform[1];
+    uvTransform[0] = frameTransform[2] - ndcOriginX;
+    uvTransform[1] = frameTransform[3] - ndcOriginY;
+    uvTransform[2] = 0;
+    uvTransform[3] = frameTransform[4] - ndcOriginX;
+    uvTransform[4] = frameTransform[5] - ndcOriginY;
+    uvTransform[5] = 0;
+    uvTransform[6] = ndcOriginX;
+    uvTransform[7] = ndcOriginY;
+    uvTransform[8] = 1;
+    return uvTransform;
+  }
+
+  public float[] getProjectionMatrix() {
+    return projectionMatrix;
+  }
+
+  public float[] getViewMatrix() {
+    return viewMatrix;
+  }
+
+  public float[] getColorCorrectionRgba() {
+    return colorCorrectionRgba;
+  }
+
+  /**
+   * Scratch space for the packed model matrices of up to {@link ObjectRenderer#getMaxInstances()}
+   * instances, e.g. the anchors drawn this frame.
+   */
+  public float[] getInstanceMatrices() {
+    return instanceMatrices;
+  }
+
+  public float[] getUvTransform() {
+    return uvTransform;
+  }
+}
@@ -0,0 +1,218 @@
+package com.google.ar.core.codelab.common.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import com.google.ar.core.codelab.common.helpers.MappedAssets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Meshes and textures loaded from assets into GL objects, shared by every renderer that draws the
+ * same model.
+ *
+ * <p>Resources are keyed by asset name, created on first {@link #acquireMesh} or {@link
+ * #acquireTexture} and reference counted: each acquire must be paired with a {@link #release}, and
+ * the GL objects are deleted when the last user releases them. When the GL context is lost all GL
+ * names become invalid at once, so {@link #onContextLost()} forgets every resource without deleting
+ * anything; renderers then acquire them again in the new context. Must be used on the GL thread.
+ */
+public final class GpuResourceCache {
+  private static final String TAG = GpuResourceCache.class.getSimpleName();
+
+  // Binary meshes compiled from OBJ files at build time.
+  private static final int MESH_MAGIC = 'M' | 'E' << 8 | 'S' << 16 | 'H' << 24;
+  private static final int MESH_VERSION = 1;
+  private static final int MESH_HEADER_SIZE = 24;
+
+  /**
+   * A model in a vertex and an index buffer, plus a copy laid out for instanced drawing. Vertices
+   * are interleaved: position, normal and texture coordinates, all floats.
+   */
+  public static final class Mesh {
+    static final int VERTEX_STRIDE = 32;
+    static final int POSITION_OFFSET = 0;
+    static final int NORMAL_OFFSET = 12;
+    static final int TEX_COORD_OFFSET = 24;
+
+    private final String assetName;
+    private int referenceCount;
+
+    int vertexBufferId;
+    int indexBufferId;
+    int indexCount;
+    MeshInstancer instancer;
+
+    private Mesh(String assetName) {
+      this.assetName = assetName;
+    }
+  }
+
+  /** A mipmapped 2D texture decoded from an image asset. */
+  public static final class Texture {
+    private final String assetName;
+    private int referenceCount;
+    private final int[] textureId = new int[1];
+
+    private Texture(String assetName) {
+      this.assetName = assetName;
+    }
+
+    public int getTextureId() {
+      return textureId[0];
+    }
+  }
+
+  private final Map<String, Mesh> meshes = new HashMap<>();
+  private final Map<String, Texture> textures = new HashMap<>();
+
+  /**
+   * Returns the mesh of the {@code .mesh} asset {@code assetName}, compiled from an OBJ file at
+   * build time, loading it if no one holds it yet.
+   */
+  public Mesh acquireMesh(Context context, String assetName) throws IOException {
+    Mesh mesh = meshes.get(assetName);
+    if (mesh == null) {
+      mesh = loadBinaryMesh(context, assetName);
+      meshes.put(assetName, mesh);
+    }
+    mesh.referenceCount++;
+    return mesh;
+  }
+
+  /** Returns the texture of the image asset {@code assetName}, loading it if no one holds it yet. */
+  public Texture acquireTexture(Context context, String assetName) throws IOException {
+    Texture texture = textures.get(assetName);
+    if (texture == null) {
+      texture = loadTexture(context, assetName);
+      textures.put(assetName, texture);
+    }
+    texture.referenceCount++;
+    return texture;
+  }
+
+  /** Drops one reference to {@code mesh}, deleting its buffers with the last one. */
+  public void release(Mesh mesh) {
+    // Meshes acquired before a context loss are no longer in the map and have nothing to delete.
+    if (meshes.get(mesh.assetName) != mesh || --mesh.referenceCount > 0) {
+      return;
+    }
+    meshes.remove(mesh.assetName);
+    int[] buffers = {mesh.vertexBufferId, mesh.indexBufferId};
+    GLES20.glDeleteBuffers(buffers.length, buffers, 0);
+    mesh.instancer.release();
+  }
+
+  /** Drops one reference to {@code texture}, deleting it with the last one. */
+  public void release(Texture texture) {
+    if (textures.get(texture.assetName) != texture || --texture.referenceCount > 0) {
+      return;
+    }
+    textures.remove(texture.assetName);
+    GLES20.glDeleteTextures(1, texture.textureId, 0);
+  }
+
+  /**
+   * Forgets every resource without deleting it, because the GL context that owned them is gone.
+   * Call from {@code GLSurfaceView.Renderer#onSurfaceCreated} before the renderers are created.
+   */
+  public void onContextLost() {
+    meshes.clear();
+    textures.clear();
+  }
+
+  private static Texture loadTexture(Context context, String assetName) throws IOException {
+    Texture texture = new Texture(assetName);
+    Bitmap textureBitmap;
+    try (InputStream textureInputStream = context.getAssets().open(assetName)) {
+      textureBitmap = BitmapFactory.decodeStream(textureInputStream);
+    }
+
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glGenTextures(1, texture.textureId, 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.textureId[0]);
+
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
+    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    textureBitmap.recycle();
+
+    ShaderUtil.checkGLError(TAG, "Texture loading");
+    return texture;
+  }
+
+  /** Loads a mesh compiled at build time by {@code compileMeshes}, see buildSrc for the format. */
+  private static Mesh loadBinaryMesh(Context context, String assetName) throws IOException {
+    // Meshes are stored uncompressed, so the buffers below are slices of the mapped APK.
+    ByteBuffer data = MappedAssets.map(context, assetName).order(ByteOrder.LITTLE_ENDIAN);
+
+    if (data.limit() < MESH_HEADER_SIZE
+        || data.getInt(0) != MESH_MAGIC
+        || data.getInt(4) != MESH_VERSION) {
+      throw new IOException("Not a version " + MESH_VERSION + " mesh: " + assetName);
+    }
+    int vertexCount = data.getInt(8);
+    int indexCount = data.getInt(12);
+    if (data.getInt(16) != Mesh.VERTEX_STRIDE || data.getInt(20) != 2) {
+      throw new IOException("Unsupported vertex or index layout: " + assetName);
+    }
+    if (vertexCount <= 0 || indexCount <= 0) {
+      throw new IOException("Empty mesh: " + assetName);
+    }
+    int indicesStart = MESH_HEADER_SIZE + vertexCount * Mesh.VERTEX_STRIDE;
+    if (data.limit() < indicesStart + 2 * indexCount) {
+      throw new IOException("Truncated mesh: " + assetName);
+    }
+
+    data.limit(indicesStart).position(MESH_HEADER_SIZE);
+    ByteBuffer vertexData = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+    data.limit(indicesStart + 2 * indexCount).position(indicesStart);
+    ShortBuffer indices = data.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+    Mesh mesh = new Mesh(assetName);
+    upload(mesh, vertexData, vertexCount, indices);
+    return mesh;
+  }
+
+  /** Creates the GL buffers of {@code mesh} from interleaved vertices and 16-bit indices. */
+  private static void upload(
+      Mesh mesh, ByteBuffer vertexData, int vertexCount, ShortBuffer indices) {
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    mesh.vertexBufferId = buffers[0];
+    mesh.indexBufferId = buffers[1];
+
+    // Load vertex buffer
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.vertexBufferId);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER,
+        vertexCount * Mesh.VERTEX_STRIDE,
+        vertexData,
+        GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    // Load index buffer
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBufferId);
+    mesh.indexCount = indices.limit();
+    GLES20.glBufferData(
+        GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * mesh.indexCount, indices, GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Mesh buffer load");
+
+    // The same object again, for drawing all instances in one or a few calls.
+    mesh.instancer = new MeshInstancer(MeshInstancer.detectMode());
+    mesh.instancer.createOnGlThread(vertexData, vertexCount, indices);
+  }
+}
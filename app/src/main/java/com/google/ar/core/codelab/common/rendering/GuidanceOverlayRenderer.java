@@ -0,0 +1,184 @@
+package com.google.ar.core.codelab.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws the guidance reticle and the orientation bubble as part of the GL frame.
+ *
+ * <p>Both shapes come from one shader pass over a single quad that only covers them: the fragment
+ * shader evaluates a ring and a disc distance function, so nothing but a few uniforms changes from
+ * frame to frame. Positions and sizes are given in view pixels with the origin at the top left, the
+ * same as the {@link CircleOrientationRenderer} and {@link CenterOrientationRenderer} views it
+ * replaces. Must be used on the GL thread.
+ */
+public class GuidanceOverlayRenderer {
+  private static final String TAG = GuidanceOverlayRenderer.class.getSimpleName();
+
+  private static final String VERTEX_SHADER_NAME = "shaders/guidance_overlay.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/guidance_overlay.frag";
+
+  private static final int COORDS_PER_VERTEX = 2;
+  private static final int FLOAT_SIZE = 4;
+  // Extra pixels around the shapes so the antialiased edge is not clipped.
+  private static final float EDGE_MARGIN = 2.0f;
+
+  private static final float[] QUAD_COORDS =
+      new float[] {
+        -1.0f, -1.0f, +1.0f, -1.0f, -1.0f, +1.0f, +1.0f, +1.0f,
+      };
+
+  private FloatBuffer quadCoords;
+  private int program;
+  private int positionParam;
+  private int rectParam;
+  private int ringCenterParam;
+  private int ringRadiusParam;
+  private int ringHalfWidthParam;
+  private int ringColorParam;
+  private int bubbleCenterParam;
+  private int bubbleRadiusParam;
+  private int bubbleColorParam;
+
+  private int viewWidth;
+  private int viewHeight;
+
+  private float ringX;
+  private float ringY;
+  private float ringRadius;
+  private float ringStrokeWidth;
+  private final float[] ringColor = {0.0f, 1.0f, 0.0f, 1.0f};
+
+  private float bubbleX;
+  private float bubbleY;
+  private float bubbleRadius;
+  private final float[] bubbleColor = {0.0f, 0.0f, 1.0f, 1.0f};
+
+  /**
+   * Allocates and initializes the OpenGL resources. Must be called on the OpenGL thread, typically
+   * in {@code GLSurfaceView.Renderer#onSurfaceCreated}.
+   *
+   * @param context Needed to access shader source.
+   */
+  public void createOnGlThread(Context context) throws IOException {
+    ByteBuffer bbCoords = ByteBuffer.allocateDirect(QUAD_COORDS.length * FLOAT_SIZE);
+    bbCoords.order(ByteOrder.nativeOrder());
+    quadCoords = bbCoords.asFloatBuffer();
+    quadCoords.put(QUAD_COORDS);
+    quadCoords.position(0);
+
+    int vertexShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+    program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+    GLES20.glUseProgram(program);
+    ShaderUtil.checkGLError(TAG, "Program creation");
+
+    positionParam = GLES20.glGetAttribLocation(program, "a_Position");
+    rectParam = GLES20.glGetUniformLocation(program, "u_Rect");
+    ringCenterParam = GLES20.glGetUniformLocation(program, "u_RingCenter");
+    ringRadiusParam = GLES20.glGetUniformLocation(program, "u_RingRadius");
+    ringHalfWidthParam = GLES20.glGetUniformLocation(program, "u_RingHalfWidth");
+    ringColorParam = GLES20.glGetUniformLocation(program, "u_RingColor");
+    bubbleCenterParam = GLES20.glGetUniformLocation(program, "u_BubbleCenter");
+    bubbleRadiusParam = GLES20.glGetUniformLocation(program, "u_BubbleRadius");
+    bubbleColorParam = GLES20.glGetUniformLocation(program, "u_BubbleColor");
+    ShaderUtil.checkGLError(TAG, "Program parameters");
+  }
+
+  /** Sets the size of the view the overlay is drawn in. */
+  public void setViewport(int width, int height) {
+    viewWidth = width;
+    viewHeight = height;
+  }
+
+  /** Places the reticle; the stroke is centered on the radius like a stroked {@code Paint}. */
+  public void setReticle(float centerX, float centerY, float radius, float strokeWidth) {
+    ringX = centerX;
+    ringY = centerY;
+    ringRadius = radius;
+    ringStrokeWidth = strokeWidth;
+  }
+
+  /** Places the bubble. */
+  public void setBubble(float centerX, float centerY, float radius) {
+    bubbleX = centerX;
+    bubbleY = centerY;
+    bubbleRadius = radius;
+  }
+
+  /** Sets the reticle color, components 0 to 1. */
+  public void setReticleColor(float r, float g, float b, float a) {
+    ringColor[0] = r;
+    ringColor[1] = g;
+    ringColor[2] = b;
+    ringColor[3] = a;
+  }
+
+  /** Sets the bubble color, components 0 to 1. */
+  public void setBubbleColor(float r, float g, float b, float a) {
+    bubbleColor[0] = r;
+    bubbleColor[1] = g;
+    bubbleColor[2] = b;
+    bubbleColor[3] = a;
+  }
+
+  /** Draws the reticle and the bubble over whatever has been drawn so far. */
+  public void draw() {
+    if (viewWidth == 0 || viewHeight == 0) {
+      return;
+    }
+
+    // Bounding box of both shapes in view pixels.
+    float ringExtent = ringRadius + ringStrokeWidth / 2 + EDGE_MARGIN;
+    float bubbleExtent = bubbleRadius + EDGE_MARGIN;
+    float left = Math.min(ringX - ringExtent, bubbleX - bubbleExtent);
+    float right = Math.max(ringX + ringExtent, bubbleX + bubbleExtent);
+    float top = Math.min(ringY - ringExtent, bubbleY - bubbleExtent);
+    float bottom = Math.max(ringY + ringExtent, bubbleY + bubbleExtent);
+
+    // gl_FragCoord has its origin at the bottom left, views at the top left.
+    GLES20.glUseProgram(program);
+    GLES20.glUniform4f(
+        rectParam,
+        (left + right) / viewWidth - 1.0f,
+        1.0f - (top + bottom) / viewHeight,
+        (right - left) / viewWidth,
+        (bottom - top) / viewHeight);
+    GLES20.glUniform2f(ringCenterParam, ringX, viewHeight - ringY);
+    GLES20.glUniform1f(ringRadiusParam, ringRadius);
+    GLES20.glUniform1f(ringHalfWidthParam, ringStrokeWidth / 2);
+    GLES20.glUniform4fv(ringColorParam, 1, ringColor, 0);
+    GLES20.glUniform2f(bubbleCenterParam, bubbleX, viewHeight - bubbleY);
+    GLES20.glUniform1f(bubbleRadiusParam, bubbleRadius);
+    GLES20.glUniform4fv(bubbleColorParam, 1, bubbleColor, 0);
+
+    // The overlay is always on top and its output is premultiplied by alpha.
+    GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+    GLES20.glDepthMask(false);
+    GLES20.glEnable(GLES20.GL_BLEND);
+    GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+    GLES20.glVertexAttribPointer(
+        positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
+    GLES20.glEnableVertexAttribArray(positionParam);
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    GLES20.glDisableVertexAttribArray(positionParam);
+
+    // Restore the state for further drawing.
+    GLES20.glDisable(GLES20.GL_BLEND);
+    GLES20.glDepthMask(true);
+    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+
+    ShaderUtil.checkGLError(TAG, "GuidanceOverlayDraw");
+  }
+}
@@ -0,0 +1,289 @@
+package com.google.ar.core.codelab.common.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws many copies of one indexed mesh, each with its own model matrix, in one or a few draw
+ * calls.
+ *
+ * <p>On OpenGL ES 3 the model view matrices go into a per-instance attribute buffer and all copies
+ * are drawn with a single {@code glDrawElementsInstanced}. On ES 2 the mesh is repeated {@link
+ * #BATCH_SIZE} times in one vertex buffer, each copy tagged with its index, and the matrices of a
+ * batch are uploaded as a uniform array. Programs used with it must be compiled with {@link
+ * #getShaderDefines()}. Must be used on the GL thread.
+ */
+final class MeshInstancer {
+  private static final String TAG = MeshInstancer.class.getSimpleName();
+
+  /** Most instances drawn by one {@link #draw} call. */
+  static final int MAX_INSTANCES = 32;
+
+  // Values of the shaders' INSTANCING define.
+  static final int MODE_INSTANCED = 1;
+  static final int MODE_BATCHED = 2;
+
+  // ES 2 guarantees 128 vertex uniform vectors; a batch of matrices uses 64 of them.
+  private static final int BATCH_SIZE = 16;
+  private static final int FLOATS_PER_MATRIX = 16;
+  private static final int FLOAT_SIZE = 4;
+  private static final int SHORT_SIZE = 2;
+  private static final int MATRIX_COLUMNS = 4;
+  private static final int VERTEX_STRIDE = GpuResourceCache.Mesh.VERTEX_STRIDE;
+
+  private final int mode;
+  private final float[] modelViews = new float[MAX_INSTANCES * FLOATS_PER_MATRIX];
+  private final int[] buffers = new int[3];
+
+  // Per-instance matrices, ES 3 only.
+  private FloatBuffer instanceData;
+
+  // Mesh, repeated once per batch slot on ES 2.
+  private int copies;
+  private int indexCount;
+  private int instanceIndicesOffset;
+
+  /** Attribute and uniform locations of one program drawn with a {@link MeshInstancer}. */
+  static final class Locations {
+    private final int position;
+    private final int normal;
+    private final int texCoord;
+    private final int modelView;
+    private final int instanceIndex;
+    private final int modelViews;
+
+    private Locations(int program, int mode) {
+      position = GLES20.glGetAttribLocation(program, "a_Position");
+      normal = GLES20.glGetAttribLocation(program, "a_Normal");
+      texCoord = GLES20.glGetAttribLocation(program, "a_TexCoord");
+      if (mode == MODE_INSTANCED) {
+        modelView = GLES20.glGetAttribLocation(program, "a_ModelView");
+        instanceIndex = -1;
+        modelViews = -1;
+      } else {
+        modelView = -1;
+        instanceIndex = GLES20.glGetAttribLocation(program, "a_InstanceIndex");
+        modelViews = GLES20.glGetUniformLocation(program, "u_ModelViews[0]");
+      }
+    }
+  }
+
+  /** Picks instancing if the current context is OpenGL ES 3 or later, batching otherwise. */
+  static int detectMode() {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    return version != null && version.startsWith("OpenGL ES 3") ? MODE_INSTANCED : MODE_BATCHED;
+  }
+
+  MeshInstancer(int mode) {
+    this.mode = mode;
+  }
+
+  /** Preprocessor definitions the instancing programs must be compiled with. */
+  Map<String, Integer> getShaderDefines() {
+    Map<String, Integer> defines = new HashMap<>();
+    defines.put("INSTANCING", mode);
+    defines.put("BATCH_SIZE", BATCH_SIZE);
+    return defines;
+  }
+
+  /**
+   * Uploads the mesh.
+   *
+   * @param vertices {@code vertexCount} interleaved vertices laid out as in {@link
+   *     GpuResourceCache.Mesh}, from index 0.
+   * @param vertexCount number of vertices.
+   * @param indices triangle list indices, read from index 0 up to the limit.
+   */
+  void createOnGlThread(ByteBuffer vertices, int vertexCount, ShortBuffer indices) {
+    int vertexBytes = vertexCount * VERTEX_STRIDE;
+    // Indices are shorts, so all copies must fit in 65536 vertices.
+    copies =
+        mode == MODE_INSTANCED
+            ? 1
+            : Math.max(1, Math.min(BATCH_SIZE, 65536 / Math.max(1, vertexCount)));
+    indexCount = indices.limit();
+
+    instanceIndicesOffset = copies * vertexBytes;
+    int totalBytes =
+        instanceIndicesOffset + (mode == MODE_BATCHED ? copies * vertexCount * FLOAT_SIZE : 0);
+
+    ByteBuffer vertexData = ByteBuffer.allocateDirect(totalBytes).order(ByteOrder.nativeOrder());
+    ByteBuffer source = vertices.duplicate();
+    source.limit(vertexBytes);
+    for (int copy = 0; copy < copies; copy++) {
+      source.position(0);
+      vertexData.put(source);
+    }
+    if (mode == MODE_BATCHED) {
+      for (int copy = 0; copy < copies; copy++) {
+        for (int i = 0; i < vertexCount; i++) {
+          vertexData.putFloat(copy);
+        }
+      }
+    }
+    vertexData.rewind();
+
+    ShortBuffer indexData =
+        ByteBuffer.allocateDirect(copies * indexCount * SHORT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asShortBuffer();
+    for (int copy = 0; copy < copies; copy++) {
+      int base = copy * vertexCount;
+      for (int i = 0; i < indexCount; i++) {
+        indexData.put((short) (base + indices.get(i)));
+      }
+    }
+    indexData.rewind();
+
+    GLES20.glGenBuffers(buffers.length, buffers, 0);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, vertexData, GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+    GLES20.glBufferData(
+        GLES20.GL_ELEMENT_ARRAY_BUFFER,
+        copies * indexCount * SHORT_SIZE,
+        indexData,
+        GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    if (mode == MODE_INSTANCED) {
+      instanceData =
+          ByteBuffer.allocateDirect(modelViews.length * FLOAT_SIZE)
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+    }
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Instanced buffer load");
+  }
+
+  /**
+   * Looks up the mesh attributes and instance inputs of {@code program}, which must have been
+   * compiled with {@link #getShaderDefines()}. A mesh can be drawn with several programs.
+   */
+  Locations getLocations(int program) {
+    Locations locations = new Locations(program, mode);
+    ShaderUtil.checkGLError(TAG, "Instanced program parameters");
+    return locations;
+  }
+
+  /** Deletes the GL buffers. */
+  void release() {
+    GLES20.glDeleteBuffers(buffers.length, buffers, 0);
+  }
+
+  /**
+   * Draws the mesh once per model matrix. The program {@code locations} belong to must be in use
+   * with its other uniforms set.
+   *
+   * @param cameraView the view matrix.
+   * @param modelMatrices {@code count} column-major model matrices, packed one after the other.
+   * @param count number of instances; only the first {@link #MAX_INSTANCES} are drawn.
+   */
+  void draw(Locations locations, float[] cameraView, float[] modelMatrices, int count) {
+    count = Math.min(count, MAX_INSTANCES);
+    if (count <= 0) {
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      int offset = i * FLOATS_PER_MATRIX;
+      Matrix.multiplyMM(modelViews, offset, cameraView, 0, modelMatrices, offset);
+    }
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+    GLES20.glVertexAttribPointer(
+        locations.position,
+        3,
+        GLES20.GL_FLOAT,
+        false,
+        VERTEX_STRIDE,
+        GpuResourceCache.Mesh.POSITION_OFFSET);
+    GLES20.glVertexAttribPointer(
+        locations.normal,
+        3,
+        GLES20.GL_FLOAT,
+        false,
+        VERTEX_STRIDE,
+        GpuResourceCache.Mesh.NORMAL_OFFSET);
+    GLES20.glVertexAttribPointer(
+        locations.texCoord,
+        2,
+        GLES20.GL_FLOAT,
+        false,
+        VERTEX_STRIDE,
+        GpuResourceCache.Mesh.TEX_COORD_OFFSET);
+    GLES20.glEnableVertexAttribArray(locations.position);
+    GLES20.glEnableVertexAttribArray(locations.normal);
+    GLES20.glEnableVertexAttribArray(locations.texCoord);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+
+    if (mode == MODE_INSTANCED) {
+      drawInstanced(locations, count);
+    } else {
+      drawBatched(locations, count);
+    }
+
+    GLES20.glDisableVertexAttribArray(locations.position);
+    GLES20.glDisableVertexAttribArray(locations.normal);
+    GLES20.glDisableVertexAttribArray(locations.texCoord);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "Instanced draw");
+  }
+
+  private void drawInstanced(Locations locations, int count) {
+    instanceData.clear();
+    instanceData.put(modelViews, 0, count * FLOATS_PER_MATRIX);
+    instanceData.rewind();
+    // Respecifying the whole buffer lets the driver orphan the copy still in use by the GPU.
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[2]);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER,
+        count * FLOATS_PER_MATRIX * FLOAT_SIZE,
+        instanceData,
+        GLES20.GL_STREAM_DRAW);
+
+    // A mat4 attribute takes four consecutive locations, one per column.
+    int stride = FLOATS_PER_MATRIX * FLOAT_SIZE;
+    for (int column = 0; column < MATRIX_COLUMNS; column++) {
+      int attribute = locations.modelView + column;
+      GLES20.glVertexAttribPointer(
+          attribute, 4, GLES20.GL_FLOAT, false, stride, column * 4 * FLOAT_SIZE);
+      GLES20.glEnableVertexAttribArray(attribute);
+      GLES30.glVertexAttribDivisor(attribute, 1);
+    }
+
+    GLES30.glDrawElementsInstanced(
+        GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0, count);
+
+    // The divisor is context state, reset it so other programs using these locations are not
+    // affected.
+    for (int column = 0; column < MATRIX_COLUMNS; column++) {
+      int attribute = locations.modelView + column;
+      GLES30.glVertexAttribDivisor(attribute, 0);
+      GLES20.glDisableVertexAttribArray(attribute);
+    }
+  }
+
+  private void drawBatched(Locations locations, int count) {
+    GLES20.glVertexAttribPointer(
+        locations.instanceIndex, 1, GLES20.GL_FLOAT, false, 0, instanceIndicesOffset);
+    GLES20.glEnableVertexAttribArray(locations.instanceIndex);
+    for (int first = 0; first < count; first += copies) {
+      int batch = Math.min(copies, count - first);
+      GLES20.glUniformMatrix4fv(
+          locations.modelViews, batch, false, modelViews, first * FLOATS_PER_MATRIX);
+      GLES20.glDrawElements(
+          GLES20.GL_TRIANGLES, batch * indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+    }
+    GLES20.glDisableVertexAttribArray(locations.instanceIndex);
+  }
+}
@@ -15,24 +15,12 @@
 package com.google.ar.core.codelab.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjUtils;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
-
-/** Renders an object loaded from an OBJ file in OpenGL. */
+import java.util.Map;
+
+/** Renders an object compiled from an OBJ file in OpenGL. */
 public class OcclusionObjectRenderer {
   private static final String TAG = OcclusionObjectRenderer.class.getSimpleName();
 
@@ -48,6 +36,7 @@ public class OcclusionObjectRenderer {
 
   // Object vertex buffer variables.
   private int vertexBufferId;
+  private int vertexStride;
   private int verticesBaseAddress;
   private int texCoordsBaseAddress;
   private int normalsBaseAddress;
@@ -102,6 +91,27 @@ public class OcclusionObjectRenderer {
   private float[] uvTransform = null;
   private int depthTextureId;
 
+  // Shared model and texture.
+  private GpuResourceCache resourceCache;
+  private GpuResourceCache.Mesh mesh;
+  private GpuResourceCache.Texture texture;
+
+  // Program for drawing many instances per call, see drawInstances().
+  private MeshInstancer.Locations instancedLocations;
+  private int instancedProgram;
+  private int instancedProjectionUniform;
+  private int instancedLightDirectionUniform;
+  private int instancedTextureUniform;
+  private int instancedMaterialParametersUniform;
+  private int instancedColorCorrectionParameterUniform;
+  private int instancedColorUniform;
+  private int instancedDepthTextureUniform;
+  private int instancedDepthUvTransformUniform;
+  private int instancedDepthToleranceUniform;
+  private int instancedOcclusionAlphaUniform;
+  private int instancedOcclusionBlurUniform;
+  private int instancedDepthAspectRatioUniform;
+
   // Temporary matrices allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
@@ -125,11 +135,31 @@ public class OcclusionObjectRenderer {
    * Creates and initializes OpenGL resources needed for rendering the model.
    *
    * @param context Context for loading the shader and below-named model and texture assets.
-   * @param objAssetName Name of the OBJ file containing the model geometry.
+   * @param objAssetName Name of the .mesh file compiled from an OBJ file, containing the model
+   *     geometry.
    * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
+    createOnGlThread(context, new GpuResourceCache(), objAssetName, diffuseTextureAssetName);
+  }
+
+  /**
+   * Creates and initializes OpenGL resources needed for rendering the model, taking the model and
+   * its texture from {@code resourceCache} so they are only loaded once.
+   *
+   * @param context Context for loading the shader and below-named model and texture assets.
+   * @param resourceCache Cache shared by the renderers of the current GL context.
+   * @param objAssetName Name of the .mesh file compiled from an OBJ file, containing the model
+   *     geometry.
+   * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+   */
+  public void createOnGlThread(
+      Context context,
+      GpuResourceCache resourceCache,
+      String objAssetName,
+      String diffuseTextureAssetName)
+      throws IOException {
     final int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
     final int fragmentShader =
@@ -168,85 +198,59 @@ public class OcclusionObjectRenderer {
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
-
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glGenTextures(textures.length, textures, 0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-
-    GLES20.glTexParameteri(
-        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-    textureBitmap.recycle();
-
-    ShaderUtil.checkGLError(TAG, "Texture loading");
-
-    // Read the obj file.
-    InputStream objInputStream = context.getAssets().open(objAssetName);
-    Obj obj = ObjReader.read(objInputStream);
-
-    // Prepare the Obj so that its structure is suitable for
-    // rendering with OpenGL:
-    // 1. Triangulate it
-    // 2. Make sure that texture coordinates are not ambiguous
-    // 3. Make sure that normals are not ambiguous
-    // 4. Convert it to single-indexed data
-    obj = ObjUtils.convertToRenderable(obj);
-
-    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
-    // that OpenGL understands.
-
-    // Obtain the data from the OBJ, as direct buffers:
-    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
-    FloatBuffer vertices = ObjData.getVertices(obj);
-    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
-    FloatBuffer normals = ObjData.getNormals(obj);
-
-    // Convert int indices to shorts for GL ES 2.0 compatibility
-    ShortBuffer indices =
-        ByteBuffer.allocateDirect(2 * wideIndices.limit())
-            .order(ByteOrder.nativeOrder())
-            .asShortBuffer();
-    while (wideIndices.hasRemaining()) {
-      indices.put((short) wideIndices.get());
-    }
-    indices.rewind();
-
-    int[] buffers = new int[2];
-    GLES20.glGenBuffers(2, buffers, 0);
-    vertexBufferId = buffers[0];
-    indexBufferId = buffers[1];
-
-    // Load vertex buffer
-    verticesBaseAddress = 0;
-    texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
-    normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
-    final int totalBytes = normalsBaseAddress + 4 * normals.limit();
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
-    // Load index buffer
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    indexCount = indices.limit();
-    GLES20.glBufferData(
-        GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-
-    ShaderUtil.checkGLError(TAG, "OBJ buffer load");
+    // The model and its texture are shared with other renderers drawing the same assets.
+    this.resourceCache = resourceCache;
+    texture = resourceCache.acquireTexture(context, diffuseTextureAssetName);
+    textures[0] = texture.getTextureId();
+    mesh = resourceCache.acquireMesh(context, objAssetName);
+    vertexBufferId = mesh.vertexBufferId;
+    vertexStride = GpuResourceCache.Mesh.VERTEX_STRIDE;
+    verticesBaseAddress = GpuResourceCache.Mesh.POSITION_OFFSET;
+    texCoordsBaseAddress = GpuResourceCache.Mesh.TEX_COORD_OFFSET;
+    normalsBaseAddress = GpuResourceCache.Mesh.NORMAL_OFFSET;
+    indexBufferId = mesh.indexBufferId;
+    indexCount = mesh.indexCount;
+
+    // A second program for drawing all instances in one or a few calls.
+    Map<String, Integer> defines = mesh.instancer.getShaderDefines();
+    final int instancedVertexShader =
+        ShaderUtil.loadGLShader(
+            TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME, defines);
+    final int instancedFragmentShader =
+        ShaderUtil.loadGLShader(
+            TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defines);
+
+    instancedProgram = GLES20.glCreateProgram();
+    GLES20.glAttachShader(instancedProgram, instancedVertexShader);
+    GLES20.glAttachShader(instancedProgram, instancedFragmentShader);
+    GLES20.glLinkProgram(instancedProgram);
+    GLES20.glUseProgram(instancedProgram);
+
+    ShaderUtil.checkGLError(TAG, "Instanced program creation");
+
+    instancedProjectionUniform = GLES20.glGetUniformLocation(instancedProgram, "u_Projection");
+    instancedLightDirectionUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_LightDirection");
+    instancedTextureUniform = GLES20.glGetUniformLocation(instancedProgram, "u_Texture");
+    instancedMaterialParametersUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_MaterialParameters");
+    instancedColorCorrectionParameterUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_ColorCorrectionParameters");
+    instancedColorUniform = GLES20.glGetUniformLocation(instancedProgram, "u_ObjColor");
+    instancedDepthTextureUniform = GLES20.glGetUniformLocation(instancedProgram, "u_Depth");
+    instancedDepthUvTransformUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_UvTransform");
+    instancedDepthToleranceUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_DepthTolerancePerMm");
+    instancedOcclusionAlphaUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_OcclusionAlpha");
+    instancedOcclusionBlurUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_OcclusionBlurAmount");
+    instancedDepthAspectRatioUniform =
+        GLES20.glGetUniformLocation(instancedProgram, "u_DepthAspectRatio");
+    instancedLocations = mesh.instancer.getLocations(instancedProgram);
+
+    ShaderUtil.checkGLError(TAG, "Instanced program parameters");
 
     Matrix.setIdentityM(modelMatrix, 0);
   }
@@ -259,12 +263,12 @@ public class OcclusionObjectRenderer {
    * @see Matrix
    */
   public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
-    float[] scaleMatrix = new float[16];
-    Matrix.setIdentityM(scaleMatrix, 0);
-    scaleMatrix[0] = scaleFactor;
-    scaleMatrix[5] = scaleFactor;
-    scaleMatrix[10] = scaleFactor;
-    Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, scaleMatrix, 0);
+    // Same as multiplying by a uniform scale matrix: the three axis columns are scaled and the
+    // translation column is kept, without allocating the scale matrix every frame.
+    for (int i = 0; i < 12; i++) {
+      this.modelMatrix[i] = modelMatrix[i] * scaleFactor;
+    }
+    System.arraycopy(modelMatrix, 12, this.modelMatrix, 12, 4);
   }
 
   /**
@@ -338,10 +342,16 @@ public class OcclusionObjectRenderer {
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
 
     GLES20.glVertexAttribPointer(
-        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, verticesBaseAddress);
-    GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
+        positionAttribute,
+        COORDS_PER_VERTEX,
+        GLES20.GL_FLOAT,
+        false,
+        vertexStride,
+        verticesBaseAddress);
     GLES20.glVertexAttribPointer(
-        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
+        normalAttribute, 3, GLES20.GL_FLOAT, false, vertexStride, normalsBaseAddress);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute, 2, GLES20.GL_FLOAT, false, vertexStride, texCoordsBaseAddress);
 
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
@@ -376,6 +386,84 @@ public class OcclusionObjectRenderer {
     ShaderUtil.checkGLError(TAG, "After draw");
   }
 
+  /**
+   * Draws the object once for each model matrix, in a single instanced draw call on OpenGL ES 3 and
+   * in batches of copies of the mesh on ES 2. Unlike {@link #updateModelMatrix} no scale is applied.
+   *
+   * @param modelMatrices column-major model-to-world matrices, packed one after the other.
+   * @param count number of matrices; at most {@link #getMaxInstances()} are drawn.
+   */
+  public void drawInstances(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] objColor,
+      float[] modelMatrices,
+      int count) {
+
+    ShaderUtil.checkGLError(TAG, "Before draw");
+
+    GLES20.glUseProgram(instancedProgram);
+
+    // The light direction is moved into view space per instance by the vertex shader.
+    GLES20.glUniformMatrix4fv(instancedProjectionUniform, 1, false, cameraPerspective, 0);
+    GLES20.glUniform3f(
+        instancedLightDirectionUniform, LIGHT_DIRECTION[0], LIGHT_DIRECTION[1], LIGHT_DIRECTION[2]);
+    GLES20.glUniform4fv(instancedColorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
+    GLES20.glUniform4fv(instancedColorUniform, 1, objColor, 0);
+    GLES20.glUniform4f(
+        instancedMaterialParametersUniform, ambient, diffuse, specular, specularPower);
+
+    // Attach the object texture.
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+    GLES20.glUniform1i(instancedTextureUniform, 0);
+
+    // Occlusion parameters.
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
+    GLES20.glUniform1i(instancedDepthTextureUniform, 1);
+    GLES20.glUniformMatrix3fv(instancedDepthUvTransformUniform, 1, false, uvTransform, 0);
+    GLES20.glUniform1f(instancedDepthToleranceUniform, depthTolerancePerMm);
+    GLES20.glUniform1f(instancedOcclusionAlphaUniform, occlusionsAlpha);
+    GLES20.glUniform1f(instancedOcclusionBlurUniform, occlusionsBlur);
+    GLES20.glUniform1f(instancedDepthAspectRatioUniform, depthAspectRatio);
+
+    // Set blend mode for occlusion alpha-blending.
+    GLES20.glEnable(GLES20.GL_BLEND);
+    GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+    mesh.instancer.draw(instancedLocations, cameraView, modelMatrices, count);
+
+    // Revert blend mode.
+    GLES20.glDisable(GLES20.GL_BLEND);
+    GLES20.glDepthMask(true);
+
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "After draw");
+  }
+
+  /**
+   * Releases the shared model and texture and deletes the programs. Call on the GL thread while the
+   * context they were created in is current.
+   */
+  public void release() {
+    if (resourceCache == null) {
+      return;
+    }
+    resourceCache.release(mesh);
+    resourceCache.release(texture);
+    resourceCache = null;
+    GLES20.glDeleteProgram(program);
+    GLES20.glDeleteProgram(instancedProgram);
+  }
+
+  /** Most instances drawn by one {@link #drawInstances} call. */
+  public static int getMaxInstances() {
+    return MeshInstancer.MAX_INSTANCES;
+  }
+
   private static void normalizeVec3(float[] v) {
     float reciprocalLength = 1.0f / (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
     v[0] *= reciprocalLength;
@@ -17,13 +17,16 @@ package com.google.ar.core.codelab.common.rendering;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.util.Log;
-import java.io.BufferedReader;
+import com.google.ar.core.codelab.common.helpers.MappedAssets;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
 
 /** Shader helper functions. */
 public class ShaderUtil {
+  private static final String INCLUDE_DIRECTIVE = "#include ";
+
   /**
    * Converts a raw text file, saved as a resource, into an OpenGL ES shader.
    *
@@ -33,7 +36,27 @@ public class ShaderUtil {
    */
   public static int loadGLShader(String tag, Context context, int type, String filename)
       throws IOException {
-    String code = readShaderFileFromAssets(context, filename);
+    return loadGLShader(tag, context, type, filename, Collections.<String, Integer>emptyMap());
+  }
+
+  /**
+   * Converts a raw text file, saved as a resource, into an OpenGL ES shader, with preprocessor
+   * definitions prepended to the source.
+   *
+   * @param type The type of shader we will be creating.
+   * @param filename The filename of the asset file about to be turned into a shader.
+   * @param defineValuesMap The #define values to add to the top of the shader source code.
+   * @return The shader object handler.
+   */
+  public static int loadGLShader(
+      String tag, Context context, int type, String filename, Map<String, Integer> defineValuesMap)
+      throws IOException {
+    StringBuilder defines = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
+      defines.append("#define ").append(entry.getKey()).append(' ').append(entry.getValue());
+      defines.append('\n');
+    }
+    String code = defines + readShaderFileFromAssets(context, filename);
     int shader = GLES20.glCreateShader(type);
     GLES20.glShaderSource(shader, code);
     GLES20.glCompileShader(shader);
@@ -83,24 +106,32 @@ public class ShaderUtil {
    */
   private static String readShaderFileFromAssets(Context context, String filename)
       throws IOException {
-    try (InputStream inputStream = context.getAssets().open(filename);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-      StringBuilder sb = new StringBuilder();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        String[] tokens = line.split(" ", -1);
-        if (tokens[0].equals("#include")) {
-          String includeFilename = tokens[1];
-          includeFilename = includeFilename.replace("\"", "");
-          if (includeFilename.equals(filename)) {
-            throw new IOException("Do not include the calling file.");
-          }
-          sb.append(readShaderFileFromAssets(context, includeFilename));
-        } else {
-          sb.append(line).append("\n");
+    // Shaders are stored uncompressed, so this decodes straight from the mapped APK.
+    String source =
+        StandardCharsets.UTF_8.decode(MappedAssets.map(context, filename)).toString();
+    StringBuilder sb = new StringBuilder(source.length());
+    int lineStart = 0;
+    while (lineStart < source.length()) {
+      int lineEnd = source.indexOf('\n', lineStart);
+      if (lineEnd < 0) {
+        lineEnd = source.length();
+      }
+      if (source.startsWith(INCLUDE_DIRECTIVE, lineStart)) {
+        int nameStart = lineStart + INCLUDE_DIRECTIVE.length();
+        int nameEnd = source.indexOf(' ', nameStart);
+        if (nameEnd < 0 || nameEnd > lineEnd) {
+          nameEnd = lineEnd;
+        }
+        String includeFilename = source.substring(nameStart, nameEnd).replace("\"", "").trim();
+        if (includeFilename.equals(filename)) {
+          throw new IOException("Do not include the calling file.");
         }
+        sb.append(readShaderFileFromAssets(context, includeFilename));
+      } else {
+        sb.append(source, lineStart, lineEnd).append('\n');
       }
-      return sb.toString();
+      lineStart = lineEnd + 1;
     }
+    return sb.toString();
   }
 }
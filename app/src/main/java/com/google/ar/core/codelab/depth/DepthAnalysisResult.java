@@ -0,0 +1,188 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Output of {@link DepthAnalysisWorker} for one depth frame.
+ *
+ * <p>Instances are recycled between frames, so every stage must overwrite all of the fields it
+ * owns on each frame. Readers get a stable instance from {@link DepthAnalysisWorker#pollResult()}
+ * that is not written to until their next poll.
+ */
+public final class DepthAnalysisResult {
+  long timestamp;
+  int roiDepthMm;
+  int roiValidCount;
+  int filteredDepthMm;
+  float depthStdDevMm = Float.POSITIVE_INFINITY;
+  boolean depthStable;
+  boolean hasConfidence;
+  float roiConfidence;
+  float roiConfidentFraction;
+  boolean planeValid;
+  float planeAngleDeg;
+  float planeTiltXDeg;
+  float planeTiltYDeg;
+  float planeDistanceMm;
+  float planeInlierRatio;
+  FloatBuffer points = FloatBuffer.allocate(0);
+  int pointCount;
+  float roiAreaMm2;
+  DepthPyramid pyramid;
+  boolean pyramidValid;
+  ByteBuffer refinedDepth;
+  ShortBuffer refinedSamples;
+  boolean refinedValid;
+  int refinedWidth;
+  int refinedHeight;
+
+  /** Returns the point buffer, reallocated if it cannot hold {@code maxPoints} points. */
+  FloatBuffer ensurePointCapacity(int maxPoints) {
+    if (points.capacity() < maxPoints * 3) {
+      points =
+          ByteBuffer.allocateDirect(maxPoints * 3 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+    points.clear();
+    return points;
+  }
+
+  /**
+   * Returns a view of the refined depth buffer that can hold {@code samples} samples, positioned at
+   * 0. The buffer and its view are only reallocated when the resolution grows.
+   */
+  ShortBuffer ensureRefinedCapacity(int samples) {
+    ByteBuffer buffer = DepthFrame.ensureCapacity(refinedDepth, samples * 2);
+    if (buffer != refinedDepth) {
+      refinedDepth = buffer;
+      refinedSamples = buffer.asShortBuffer();
+    }
+    refinedSamples.clear();
+    return refinedSamples;
+  }
+
+  /** Timestamp of the analysed depth image, or 0 if nothing has been analysed yet. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** Robust depth under the screen centre in millimeters, or 0 if the patch had no valid sample. */
+  public int getRoiDepthMm() {
+    return roiDepthMm;
+  }
+
+  /** Number of non-zero samples behind {@link #getRoiDepthMm()}. */
+  public int getRoiValidCount() {
+    return roiValidCount;
+  }
+
+  /** Temporally smoothed ROI depth in millimeters, or 0 before the first valid reading. */
+  public int getFilteredDepthMm() {
+    return filteredDepthMm;
+  }
+
+  /** Standard deviation of the recent ROI readings in millimeters. */
+  public float getDepthStdDevMm() {
+    return depthStdDevMm;
+  }
+
+  /** Whether the recent ROI readings have settled, see {@link TemporalDepthFilter}. */
+  public boolean isDepthStable() {
+    return depthStable;
+  }
+
+  /** Whether the frame came with a raw depth confidence image. */
+  public boolean hasConfidence() {
+    return hasConfidence;
+  }
+
+  /** Mean confidence over the ROI patch, 0 to 1. Only meaningful if {@link #hasConfidence()}. */
+  public float getRoiConfidence() {
+    return roiConfidence;
+  }
+
+  /** Fraction of ROI pixels above the per-pixel confidence threshold, 0 to 1. */
+  public float getRoiConfidentFraction() {
+    return roiConfidentFraction;
+  }
+
+  /** Whether a skin plane was found. The plane getters below are stale when this is false. */
+  public boolean isPlaneValid() {
+    return planeValid;
+  }
+
+  /** Angle between the camera axis and the skin plane normal, in degrees. */
+  public float getPlaneAngleDeg() {
+    return planeAngleDeg;
+  }
+
+  /**
+   * Tilt of the skin plane along the depth image x axis, in degrees, positive when depth grows to
+   * the right of the image. The image is in camera sensor axes; see {@code TiltFrame}.
+   */
+  public float getPlaneTiltXDeg() {
+    return planeTiltXDeg;
+  }
+
+  /**
+   * Tilt of the skin plane along the depth image y axis, in degrees, positive when depth grows
+   * towards the bottom of the image.
+   */
+  public float getPlaneTiltYDeg() {
+    return planeTiltYDeg;
+  }
+
+  /** Mean depth of the plane inliers, in millimeters. */
+  public float getPlaneDistanceMm() {
+    return planeDistanceMm;
+  }
+
+  /** Fraction of the patch points that support the plane, 0 to 1. */
+  public float getPlaneInlierRatio() {
+    return planeInlierRatio;
+  }
+
+  /**
+   * Camera-space points (x right, y down, z forward) in millimeters, packed as XYZ triples from
+   * position 0 up to the buffer limit. Use absolute reads; do not change the position.
+   */
+  public FloatBuffer getPoints() {
+    return points;
+  }
+
+  /** Number of XYZ triples in {@link #getPoints()}. */
+  public int getPointCount() {
+    return pointCount;
+  }
+
+  /** Skin area covered by the ROI patch, in square millimeters, or 0 if unknown. */
+  public float getRoiAreaMm2() {
+    return roiAreaMm2;
+  }
+
+  /**
+   * Region query structure for this frame, or null if pyramid building is disabled. Only valid
+   * while the result is held, like the other fields.
+   */
+  public DepthPyramid getPyramid() {
+    return pyramidValid ? pyramid : null;
+  }
+
+  /**
+   * Hole filled and smoothed DEPTH16 samples of this frame, packed in native byte order, or null if
+   * refinement is disabled. Use absolute reads; do not change the position.
+   */
+  public ByteBuffer getRefinedDepth() {
+    return refinedValid ? refinedDepth : null;
+  }
+
+  public int getRefinedWidth() {
+    return refinedWidth;
+  }
+
+  public int getRefinedHeight() {
+    return refinedHeight;
+  }
+}
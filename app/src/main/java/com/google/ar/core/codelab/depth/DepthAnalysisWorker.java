@@ -0,0 +1,235 @@
+package com.google.ar.core.codelab.depth;
+
+import android.media.Image;
+import android.util.Log;
+
+import com.google.ar.core.codelab.common.helpers.TripleBuffer;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs CPU depth analysis on a background thread so it does not eat into the GL frame time.
+ *
+ * <p>The GL thread calls {@link #submit} with a freshly acquired depth image. Its plane is copied
+ * into a pooled direct buffer and queued for the worker; when the queue is full the oldest pending
+ * frame is dropped, so the worker always catches up to the newest depth. The worker samples the ROI
+ * depth, runs any registered {@link Stage}s and publishes the result through a {@link TripleBuffer}
+ * which the GL thread reads with {@link #pollResult()}. After start-up neither side allocates.
+ */
+public final class DepthAnalysisWorker {
+  private static final String TAG = DepthAnalysisWorker.class.getSimpleName();
+
+  /** One step of per-frame analysis, called on the worker thread. */
+  public interface Stage {
+    /**
+     * Analyses {@code frame} and writes into {@code result}. Stages run in registration order and
+     * may read fields written by earlier stages.
+     */
+    void process(DepthFrame frame, DepthAnalysisResult result);
+  }
+
+  private final BlockingQueue<DepthFrame> pendingFrames;
+  private final BlockingQueue<DepthFrame> freeFrames;
+  private final TripleBuffer<DepthAnalysisResult> results =
+      new TripleBuffer<>(
+          new DepthAnalysisResult(), new DepthAnalysisResult(), new DepthAnalysisResult());
+  private final List<Stage> stages = new ArrayList<>();
+  private final DepthRoiSampler roiSampler;
+  private DepthRefiner refiner;
+  private DepthCalibration calibration;
+
+  private Thread thread;
+
+  // Latest camera intrinsics, only touched on the submitting thread.
+  private final float[] focalLength = new float[2];
+  private final float[] principalPoint = new float[2];
+  private int intrinsicsWidth;
+  private int intrinsicsHeight;
+
+  /**
+   * @param queueCapacity maximum number of frames waiting for analysis.
+   * @param roiSampler sampler used on the worker thread for the centre distance.
+   */
+  public DepthAnalysisWorker(int queueCapacity, DepthRoiSampler roiSampler) {
+    this.roiSampler = roiSampler;
+    pendingFrames = new ArrayBlockingQueue<>(queueCapacity);
+    // One extra frame for the one the worker is currently processing.
+    freeFrames = new ArrayBlockingQueue<>(queueCapacity + 1);
+    for (int i = 0; i < queueCapacity + 1; i++) {
+      freeFrames.offer(new DepthFrame());
+    }
+  }
+
+  /** Registers an analysis stage. Must be called before {@link #start()}. */
+  public void addStage(Stage stage) {
+    if (thread != null) {
+      throw new IllegalStateException("Stages must be added before the worker is started.");
+    }
+    stages.add(stage);
+  }
+
+  /**
+   * Sets a refiner that cleans up each frame before the ROI is sampled and the stages run. Must be
+   * called before {@link #start()}.
+   */
+  public void setRefiner(DepthRefiner refiner) {
+    if (thread != null) {
+      throw new IllegalStateException("The refiner must be set before the worker is started.");
+    }
+    this.refiner = refiner;
+  }
+
+  /**
+   * Sets the bias correction applied to every depth sample before any other processing. Must be
+   * called before {@link #start()}.
+   */
+  public void setCalibration(DepthCalibration calibration) {
+    if (thread != null) {
+      throw new IllegalStateException("The calibration must be set before the worker is started.");
+    }
+    this.calibration = calibration;
+  }
+
+  /** Starts the worker thread. Should be called from {@code Activity#onResume()}. */
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new Thread(this::run, "DepthAnalysis");
+    thread.start();
+  }
+
+  /** Stops the worker thread and drops pending frames. Should be called from onPause(). */
+  public synchronized void stop() {
+    if (thread == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+    DepthFrame frame;
+    while ((frame = pendingFrames.poll()) != null) {
+      freeFrames.offer(frame);
+    }
+  }
+
+  /**
+   * Sets the camera intrinsics attached to frames submitted from now on. Called on the submitting
+   * thread.
+   *
+   * @param focalLength focal length {fx, fy} in pixels of an image of the given size.
+   * @param principalPoint principal point {cx, cy} in pixels of an image of the given size.
+   */
+  public void setIntrinsics(
+      float[] focalLength, float[] principalPoint, int imageWidth, int imageHeight) {
+    System.arraycopy(focalLength, 0, this.focalLength, 0, 2);
+    System.arraycopy(principalPoint, 0, this.principalPoint, 0, 2);
+    intrinsicsWidth = imageWidth;
+    intrinsicsHeight = imageHeight;
+  }
+
+  /**
+   * Copies {@code depthImage} and queues it for analysis. Called on the GL thread; the images are
+   * not retained and may be closed as soon as this returns.
+   *
+   * @param confidenceImage confidence image matching a raw depth image, or null.
+   * @param roiU normalized horizontal ROI centre in the depth image.
+   * @param roiV normalized vertical ROI centre in the depth image.
+   */
+  public void submit(Image depthImage, Image confidenceImage, float roiU, float roiV) {
+    DepthFrame frame = freeFrames.poll();
+    if (frame == null) {
+      // Every buffer is queued or in use: recycle the oldest pending frame.
+      frame = pendingFrames.poll();
+      if (frame == null) {
+        return;
+      }
+    }
+    frame.copyFrom(depthImage, confidenceImage, roiU, roiV);
+    frame.setIntrinsics(focalLength, principalPoint, intrinsicsWidth, intrinsicsHeight);
+    while (!pendingFrames.offer(frame)) {
+      DepthFrame oldest = pendingFrames.poll();
+      if (oldest != null) {
+        freeFrames.offer(oldest);
+      }
+    }
+  }
+
+  /**
+   * Takes the most recent result published by the worker. Must only be called from one thread,
+   * normally the GL thread.
+   *
+   * @return the latest result. The instance stays unchanged until the next call.
+   */
+  public DepthAnalysisResult pollResult() {
+    results.update();
+    return results.getReadSlot();
+  }
+
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      DepthFrame frame;
+      try {
+        frame = pendingFrames.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      try {
+        analyze(frame, results.getWriteSlot());
+        results.publish();
+      } catch (RuntimeException e) {
+        // Avoid killing the worker because of one bad frame.
+        Log.e(TAG, "Depth analysis failed", e);
+      } finally {
+        freeFrames.offer(frame);
+      }
+    }
+  }
+
+  private void analyze(DepthFrame frame, DepthAnalysisResult result) {
+    result.timestamp = frame.getTimestamp();
+    if (calibration != null) {
+      calibration.apply(frame.getDepth(), frame.getWidth(), frame.getHeight());
+    }
+    if (refiner != null) {
+      refine(frame, result);
+    }
+    roiSampler.setCenter(frame.getRoiCenterU(), frame.getRoiCenterV());
+    result.roiDepthMm =
+        roiSampler.sample(
+            frame.getDepth(), frame.getWidth(), frame.getHeight(), frame.getRowStride(), 2);
+    result.roiValidCount = roiSampler.getValidCount();
+    for (int i = 0; i < stages.size(); i++) {
+      stages.get(i).process(frame, result);
+    }
+  }
+
+  /** Refines {@code frame} in place and publishes a copy on {@code result}. */
+  private void refine(DepthFrame frame, DepthAnalysisResult result) {
+    result.refinedValid = refiner.isEnabled();
+    if (!result.refinedValid) {
+      return;
+    }
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    int size = width * height;
+    ShortBuffer samples = frame.getDepthSamples();
+    samples.clear();
+    ShortBuffer refined = result.ensureRefinedCapacity(size);
+    refiner.refine(samples, width, height, refined);
+
+    samples.clear();
+    refined.flip();
+    samples.put(refined);
+    result.refinedWidth = width;
+    result.refinedHeight = height;
+  }
+}
@@ -0,0 +1,174 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-device correction of the depth bias, applied as a lookup table on every depth sample.
+ *
+ * <p>Calibration pairs the depth measured on a target with the target's known distance. The pairs
+ * are averaged per known distance and joined into a piecewise linear correction, which is expanded
+ * into a table over all 65536 DEPTH16 values. Below the first and above the last calibration point
+ * the correction keeps the offset of that point. Correcting a sample is then a single array read.
+ *
+ * <p>The table is swapped in atomically, so {@link #apply} on the analysis worker may run while the
+ * GL thread records samples and fits. Recording and fitting must stay on one thread.
+ */
+public final class DepthCalibration {
+  private static final int TABLE_SIZE = 1 << 16;
+  private static final int MAX_SAMPLES = 256;
+
+  // Recorded pairs, measured and true depth in millimeters.
+  private final int[] measuredSamples = new int[MAX_SAMPLES];
+  private final int[] trueSamples = new int[MAX_SAMPLES];
+  private int sampleCount;
+
+  // Fitted knots, sorted by measured depth.
+  private int[] knotMeasured = new int[0];
+  private int[] knotTrue = new int[0];
+
+  // Null while no calibration is applied.
+  private volatile char[] table;
+  private volatile boolean applied = true;
+
+  /**
+   * Records that {@code measuredMm} was read on a target at {@code trueMm}. Measurements must be
+   * taken without a correction applied, see {@link #setApplied}.
+   *
+   * @return false if the sample was rejected.
+   */
+  public boolean addSample(int measuredMm, int trueMm) {
+    if (measuredMm <= 0 || trueMm <= 0 || sampleCount == MAX_SAMPLES) {
+      return false;
+    }
+    measuredSamples[sampleCount] = measuredMm;
+    trueSamples[sampleCount] = trueMm;
+    sampleCount++;
+    return true;
+  }
+
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  public void clearSamples() {
+    sampleCount = 0;
+  }
+
+  /**
+   * Fits the correction to the recorded samples and makes it current.
+   *
+   * @return false if there were no samples; the current correction is then kept.
+   */
+  public boolean fit() {
+    // Average the measurements for each distinct true distance.
+    int[] distances = Arrays.copyOf(trueSamples, sampleCount);
+    Arrays.sort(distances);
+    int knotCount = 0;
+    int[] measured = new int[sampleCount];
+    int[] truth = new int[sampleCount];
+    for (int i = 0; i < sampleCount; i++) {
+      if (i > 0 && distances[i] == distances[i - 1]) {
+        continue;
+      }
+      long sum = 0;
+      int count = 0;
+      for (int j = 0; j < sampleCount; j++) {
+        if (trueSamples[j] == distances[i]) {
+          sum += measuredSamples[j];
+          count++;
+        }
+      }
+      measured[knotCount] = (int) (sum / count);
+      truth[knotCount] = distances[i];
+      knotCount++;
+    }
+    if (knotCount == 0) {
+      return false;
+    }
+    // The fit needs strictly increasing measured depth; drop knots that would fold the curve.
+    int kept = 1;
+    for (int i = 1; i < knotCount; i++) {
+      if (measured[i] > measured[kept - 1]) {
+        measured[kept] = measured[i];
+        truth[kept] = truth[i];
+        kept++;
+      }
+    }
+    setKnots(Arrays.copyOf(measured, kept), Arrays.copyOf(truth, kept));
+    return true;
+  }
+
+  /** Installs a correction through the given knots, sorted by strictly increasing measured depth. */
+  void setKnots(int[] measuredMm, int[] trueMm) {
+    knotMeasured = measuredMm;
+    knotTrue = trueMm;
+    table = measuredMm.length == 0 ? null : buildTable(measuredMm, trueMm);
+  }
+
+  int[] getKnotMeasured() {
+    return knotMeasured;
+  }
+
+  int[] getKnotTrue() {
+    return knotTrue;
+  }
+
+  /** Removes the correction. */
+  public void reset() {
+    setKnots(new int[0], new int[0]);
+  }
+
+  /** Whether a fitted correction exists. */
+  public boolean isCalibrated() {
+    return table != null;
+  }
+
+  /**
+   * Enables or disables applying the correction without losing it, e.g. while recording samples.
+   */
+  public void setApplied(boolean applied) {
+    this.applied = applied;
+  }
+
+  /** Corrected depth for one DEPTH16 sample in millimeters. Invalid (zero) samples stay zero. */
+  public int correct(int measuredMm) {
+    char[] current = table;
+    return current == null || !applied ? measuredMm : current[measuredMm & 0xFFFF];
+  }
+
+  /** Corrects a packed DEPTH16 frame in place. Does nothing if there is no correction to apply. */
+  void apply(ByteBuffer depth, int width, int height) {
+    char[] current = table;
+    if (current == null || !applied) {
+      return;
+    }
+    int end = width * height * 2;
+    for (int offset = 0; offset < end; offset += 2) {
+      depth.putChar(offset, current[depth.getChar(offset)]);
+    }
+  }
+
+  private static char[] buildTable(int[] measured, int[] truth) {
+    char[] lut = new char[TABLE_SIZE];
+    int last = measured.length - 1;
+    int knot = 0;
+    for (int mm = 1; mm < TABLE_SIZE; mm++) {
+      while (knot < last && mm > measured[knot + 1]) {
+        knot++;
+      }
+      float corrected;
+      if (mm <= measured[0]) {
+        corrected = mm + truth[0] - measured[0];
+      } else if (mm >= measured[last]) {
+        corrected = mm + truth[last] - measured[last];
+      } else {
+        float t = (float) (mm - measured[knot]) / (measured[knot + 1] - measured[knot]);
+        corrected = truth[knot] + t * (truth[knot + 1] - truth[knot]);
+      }
+      // Keep valid samples valid.
+      lut[mm] = (char) Math.max(1, Math.min(TABLE_SIZE - 1, Math.round(corrected)));
+    }
+    return lut;
+  }
+}
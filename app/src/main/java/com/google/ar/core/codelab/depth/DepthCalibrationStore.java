@@ -0,0 +1,69 @@
+package com.google.ar.core.codelab.depth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Persists {@link DepthCalibration} knots in shared preferences, keyed by device model. The bias
+ * comes from the model's depth sensor and processing, so a calibration stays valid across sessions
+ * and app updates.
+ */
+public final class DepthCalibrationStore {
+  private static final String TAG = DepthCalibrationStore.class.getSimpleName();
+  private static final String PREFERENCES_NAME = "depth_calibration";
+
+  private final SharedPreferences preferences;
+  private final String key;
+
+  public DepthCalibrationStore(Context context) {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    key = Build.MANUFACTURER + "/" + Build.MODEL;
+  }
+
+  /**
+   * Loads the stored calibration for this device model into {@code calibration}.
+   *
+   * @return false if there is no usable stored calibration.
+   */
+  public boolean load(DepthCalibration calibration) {
+    String value = preferences.getString(key, null);
+    if (value == null || value.isEmpty()) {
+      return false;
+    }
+    // Stored as "measured:true" pairs separated by commas.
+    String[] pairs = value.split(",");
+    int[] measured = new int[pairs.length];
+    int[] truth = new int[pairs.length];
+    try {
+      for (int i = 0; i < pairs.length; i++) {
+        int separator = pairs[i].indexOf(':');
+        measured[i] = Integer.parseInt(pairs[i].substring(0, separator));
+        truth[i] = Integer.parseInt(pairs[i].substring(separator + 1));
+        if (i > 0 && measured[i] <= measured[i - 1]) {
+          throw new IllegalArgumentException("Knots are not sorted");
+        }
+      }
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Ignoring malformed depth calibration for " + key, e);
+      return false;
+    }
+    calibration.setKnots(measured, truth);
+    return true;
+  }
+
+  /** Stores the current calibration of {@code calibration} for this device model. */
+  public void save(DepthCalibration calibration) {
+    int[] measured = calibration.getKnotMeasured();
+    int[] truth = calibration.getKnotTrue();
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < measured.length; i++) {
+      if (i > 0) {
+        value.append(',');
+      }
+      value.append(measured[i]).append(':').append(truth[i]);
+    }
+    preferences.edit().putString(key, value.toString()).apply();
+  }
+}
@@ -27,7 +27,6 @@ import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
-import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.FrameLayout;
@@ -40,7 +39,6 @@ import com.google.ar.core.Anchor;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
-import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
 import com.google.ar.core.HitResult;
 import com.google.ar.core.Plane;
@@ -50,16 +48,25 @@ import com.google.ar.core.TrackingState;
 import com.google.ar.core.codelab.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.codelab.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.codelab.common.helpers.FullScreenHelper;
+import com.google.ar.core.codelab.common.helpers.HudTextPublisher;
 import com.google.ar.core.codelab.common.helpers.SnackbarHelper;
 import com.google.ar.core.codelab.common.helpers.TapHelper;
 import com.google.ar.core.codelab.common.helpers.TrackingStateHelper;
 import com.google.ar.core.codelab.common.rendering.BackgroundRenderer;
 import com.google.ar.core.codelab.common.rendering.CenterOrientationRenderer;
 import com.google.ar.core.codelab.common.rendering.CircleOrientationRenderer;
+import com.google.ar.core.codelab.common.rendering.FrameContext;
+import com.google.ar.core.codelab.common.rendering.GpuResourceCache;
+import com.google.ar.core.codelab.common.rendering.GuidanceOverlayRenderer;
 import com.google.ar.core.codelab.common.rendering.ObjectRenderer;
 import com.google.ar.core.codelab.common.rendering.OcclusionObjectRenderer;
 import com.google.ar.core.codelab.imagecapture.ImageCaptureActivity;
 import com.google.ar.core.codelab.orientation.OrientationHandler;
+import com.google.ar.core.codelab.pose.PlaneDistanceEstimator;
+import com.google.ar.core.codelab.pose.PlaneRegistry;
+import com.google.ar.core.codelab.readiness.AlignmentStateEstimator;
+import com.google.ar.core.codelab.readiness.CaptureReadinessEngine;
+import com.google.ar.core.codelab.readiness.TiltFrame;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
@@ -93,22 +100,63 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
   private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
   private DisplayRotationHelper displayRotationHelper;
   private OrientationHandler orientationHandler;
+  private final OrientationHandler.Snapshot orientationSnapshot = new OrientationHandler.Snapshot();
   private CircleOrientationRenderer circleOrientationRenderer;
   private CenterOrientationRenderer centerOrientationRenderer;
   private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
   private TapHelper tapHelper;
+  // Frame the queued taps are hit tested against, only set while draining them.
+  private Frame tapFrame;
+  private boolean tapTracking;
+  private final TapHelper.GestureConsumer gestureConsumer = this::onGesture;
 
   private final DepthTextureHandler depthTexture = new DepthTextureHandler();
+  private DepthCalibrationStore calibrationStore;
+  // Known target distances of the depth calibration, recorded in this order. Long-press the
+  // distance readout to start, then tap it at each distance while holding the phone still over a
+  // flat target.
+  private static final int[] CALIBRATION_DISTANCES_MM = {300, 500, 700, 900};
+  // Index into CALIBRATION_DISTANCES_MM of the next sample, -1 when not calibrating. UI thread.
+  private int calibrationStep = -1;
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
   private final ObjectRenderer virtualObject = new ObjectRenderer();
   private final OcclusionObjectRenderer occludedVirtualObject = new OcclusionObjectRenderer();
-
-  // Temporary matrix allocated here to reduce number of allocations for each frame.
-  private final float[] anchorMatrix = new float[16];
+  // Model and texture shared by both object renderers, loaded once per GL context.
+  private final GpuResourceCache gpuResources = new GpuResourceCache();
+  // Reticle and bubble drawn in the GL frame; the Canvas views are only used if it fails to load.
+  private final GuidanceOverlayRenderer guidanceOverlay = new GuidanceOverlayRenderer();
+  private boolean guidanceOverlayReady;
+  private int guidanceRatio = 9;
+  private static final int GUIDANCE_RETICLE_RATIO = 9;
+  private static final float GUIDANCE_RETICLE_STROKE = 20.0f;
+  // Bubble offset in pixels per degree of tilt.
+  private static final float GUIDANCE_PIXELS_PER_DEGREE = 5.0f;
+
+  // Matrices and scratch state reused by every frame, so that drawing does not allocate.
+  private final FrameContext frameContext = new FrameContext();
 
   private static final String SEARCHING_PLANE_MESSAGE = "Please move around slowly...";
   private static final String PLANES_FOUND_MESSAGE = "Tap to place objects.";
   private static final String DEPTH_NOT_AVAILABLE_MESSAGE = "[Depth not supported on this device]";
+  private static final String SEARCHING_PLANE_NO_DEPTH_MESSAGE =
+      SEARCHING_PLANE_MESSAGE + "\n" + DEPTH_NOT_AVAILABLE_MESSAGE;
+  private static final String PLANES_FOUND_NO_DEPTH_MESSAGE =
+      PLANES_FOUND_MESSAGE + "\n" + DEPTH_NOT_AVAILABLE_MESSAGE;
+
+  // Capture gate: distance, per-axis tilt and how long both must hold before capturing.
+  private static final int APPROACH_DISTANCE_MM = 1200;
+  private static final int CAPTURE_DISTANCE_MM = 700;
+  private static final int DISTANCE_HYSTERESIS_MM = 30;
+  private static final float MAX_TILT_DEG = 2.0f;
+  private static final float TILT_HYSTERESIS_DEG = 1.0f;
+  private static final long CAPTURE_DWELL_MS = 400;
+  private final CaptureReadinessEngine readinessEngine = new CaptureReadinessEngine();
+  private final PlaneDistanceEstimator planeDistanceEstimator = new PlaneDistanceEstimator();
+  private final PlaneRegistry planeRegistry = new PlaneRegistry();
+  // Roughly the depth pipeline latency; readiness looks this far ahead in the fused state.
+  private static final float ALIGNMENT_LOOKAHEAD_S = 0.05f;
+  private final AlignmentStateEstimator alignmentEstimator = new AlignmentStateEstimator();
+  private final TiltFrame tiltFrame = new TiltFrame();
 
   // Anchors created from taps used for object placing with a given color.
   private static final float[] OBJECT_COLOR = new float[] {139.0f, 195.0f, 74.0f, 255.0f};
@@ -130,6 +178,12 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
 
   private Button mButton;
 
+  private static final int HUD_RATE_HZ = 12;
+  private final HudTextPublisher hudPublisher = new HudTextPublisher(HUD_RATE_HZ);
+  private int distanceField;
+  private int rollField;
+  private int pitchField;
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -147,11 +201,28 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     orientation2_TextView = findViewById(R.id.orientation2_TextView);
     orientation2_TextView.setText("0 '"); // Empty text initially
 
+    // Distance and orientation readouts, refreshed from the GL thread's values at a fixed rate.
+    distanceField = hudPublisher.addField(distance_TextView, 0, "");
+    rollField = hudPublisher.addField(orientation_TextView, 2, " '");
+    pitchField = hudPublisher.addField(orientation2_TextView, 2, " '");
+
     displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
+    // Correct the depth bias of this device model if it has been calibrated.
+    calibrationStore = new DepthCalibrationStore(/*context=*/ this);
+    calibrationStore.load(depthTexture.getDepthCalibration());
+    distance_TextView.setOnLongClickListener(view -> startDepthCalibration());
+    distance_TextView.setOnClickListener(view -> recordDepthCalibrationSample());
     orientationHandler = new OrientationHandler(/*context=*/this);
+    // Smoothed sub-degree attitude at 100 Hz, so the bubble follows the phone without lag.
+    orientationHandler.setFusionEnabled(true);
     circleOrientationRenderer = new CircleOrientationRenderer(/*context=*/this);
     centerOrientationRenderer = new CenterOrientationRenderer(/*context=*/this, orientationHandler);
-    orientationHandler.setOrientationRenderer(centerOrientationRenderer);
+    circleOrientationRenderer.setVisibility(View.GONE);
+    centerOrientationRenderer.setVisibility(View.GONE);
+
+    readinessEngine.setDistances(APPROACH_DISTANCE_MM, CAPTURE_DISTANCE_MM, DISTANCE_HYSTERESIS_MM);
+    readinessEngine.setTolerances(MAX_TILT_DEG, MAX_TILT_DEG, TILT_HYSTERESIS_DEG);
+    readinessEngine.setDwellMillis(CAPTURE_DWELL_MS);
 
     // Set up tap listener.
     tapHelper = new TapHelper(/*context=*/ this);
@@ -165,7 +236,8 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
     surfaceView.setWillNotDraw(false);
 
-    // Set up a Cirlce renderer overlays the surface view (for orientation)
+    // Set up a Cirlce renderer overlays the surface view (for orientation). Hidden unless the GL
+    // guidance overlay cannot be created, see showGuidanceViews().
     addContentView(circleOrientationRenderer, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.FILL_PARENT, FrameLayout.LayoutParams.FILL_PARENT));
     addContentView(centerOrientationRenderer, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.FILL_PARENT, FrameLayout.LayoutParams.FILL_PARENT));
 
@@ -221,6 +293,8 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
         isDepthSupported = session.isDepthModeSupported(Config.DepthMode.AUTOMATIC);
         if (isDepthSupported) {
           config.setDepthMode(Config.DepthMode.AUTOMATIC);
+          // AUTOMATIC also provides raw depth and its confidence, used to reject bad readings.
+          depthTexture.setUseRawDepth(true);
         } else {
           config.setDepthMode(Config.DepthMode.DISABLED);
         }
@@ -264,12 +338,17 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     surfaceView.onResume();
     displayRotationHelper.onResume();
     orientationHandler.onResume();
+    depthTexture.onResume();
+    // Back from the capture screen, or started fresh: allow the next capture.
+    readinessEngine.rearm();
+    hudPublisher.start();
 
   }
 
   @Override
   public void onPause() {
     super.onPause();
+    hudPublisher.stop();
     if (session != null) {
       // Note that the order matters - GLSurfaceView is paused first so that it does not try
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
@@ -277,8 +356,80 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
       displayRotationHelper.onPause();
       orientationHandler.onPause();
       surfaceView.onPause();
+      depthTexture.onPause();
       session.pause();
     }
+    if (calibrationStep >= 0) {
+      // The GL thread is paused, so the calibration can be dropped from here.
+      calibrationStep = -1;
+      depthTexture.cancelDepthCalibration();
+    }
+  }
+
+  /** Starts recording a depth calibration. Runs on the UI thread. */
+  private boolean startDepthCalibration() {
+    if (!isDepthSupported) {
+      Toast.makeText(this, DEPTH_NOT_AVAILABLE_MESSAGE, Toast.LENGTH_SHORT).show();
+      return true;
+    }
+    calibrationStep = 0;
+    surfaceView.queueEvent(depthTexture::startDepthCalibration);
+    showCalibrationPrompt();
+    return true;
+  }
+
+  /** Records the current depth against the pending calibration distance. Runs on the UI thread. */
+  private void recordDepthCalibrationSample() {
+    if (calibrationStep < 0) {
+      return;
+    }
+    int trueMm = CALIBRATION_DISTANCES_MM[calibrationStep];
+    // Samples are recorded and fitted on the GL thread, next to the depth analysis.
+    surfaceView.queueEvent(
+        () -> {
+          boolean recorded = depthTexture.recordDepthCalibrationSample(trueMm);
+          runOnUiThread(() -> onDepthCalibrationSample(recorded));
+        });
+  }
+
+  private void onDepthCalibrationSample(boolean recorded) {
+    if (calibrationStep < 0) {
+      return;
+    }
+    if (!recorded) {
+      Toast.makeText(this, "Hold the phone still and tap again", Toast.LENGTH_SHORT).show();
+      return;
+    }
+    calibrationStep++;
+    if (calibrationStep < CALIBRATION_DISTANCES_MM.length) {
+      showCalibrationPrompt();
+      return;
+    }
+    calibrationStep = -1;
+    surfaceView.queueEvent(
+        () -> {
+          boolean fitted = depthTexture.finishDepthCalibration();
+          if (fitted) {
+            calibrationStore.save(depthTexture.getDepthCalibration());
+          }
+          runOnUiThread(
+              () ->
+                  Toast.makeText(
+                          this,
+                          fitted ? "Depth calibration saved" : "Depth calibration failed",
+                          Toast.LENGTH_SHORT)
+                      .show());
+        });
+  }
+
+  private void showCalibrationPrompt() {
+    Toast.makeText(
+            this,
+            "Hold the phone "
+                + CALIBRATION_DISTANCES_MM[calibrationStep]
+                + " mm above a flat target and tap the distance",
+            Toast.LENGTH_LONG)
+        .show();
   }
 
   @Override
@@ -309,6 +460,9 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
   public void onSurfaceCreated(GL10 gl, EGLConfig config) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 
+    // A new GL context: resources of a previous one are gone.
+    gpuResources.onContextLost();
+
     // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
     try {
       // The depth texture is used for object occlusion and rendering.
@@ -318,11 +472,13 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
       backgroundRenderer.createOnGlThread(/*context=*/ this);
       backgroundRenderer.createDepthShaders(/*context=*/ this, depthTexture.getDepthTexture());
 
-      virtualObject.createOnGlThread(/*context=*/ this, "models/box.obj", "models/box_texture.png");
+      virtualObject.createOnGlThread(
+          /*context=*/ this, gpuResources, "models/box.mesh", "models/box_texture.png");
       virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
 
       if (isDepthSupported) {
-        occludedVirtualObject.createOnGlThread(/*context=*/ this, "models/box.obj", "models/box_texture.png");
+        occludedVirtualObject.createOnGlThread(
+            /*context=*/ this, gpuResources, "models/box.mesh", "models/box_texture.png");
         occludedVirtualObject.setDepthTexture(
             depthTexture.getDepthTexture(),
             depthTexture.getDepthWidth(),
@@ -332,6 +488,38 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
     }
+
+    try {
+      guidanceOverlay.createOnGlThread(/*context=*/ this);
+      guidanceOverlayReady = true;
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Failed to create the guidance overlay, using the view overlay instead", e);
+      guidanceOverlayReady = false;
+      runOnUiThread(this::showGuidanceViews);
+    }
+  }
+
+  /** Falls back to drawing the reticle and the bubble with Canvas views over the surface view. */
+  private void showGuidanceViews() {
+    circleOrientationRenderer.setVisibility(View.VISIBLE);
+    centerOrientationRenderer.setVisibility(View.VISIBLE);
+    orientationHandler.setOrientationRenderer(centerOrientationRenderer);
+  }
+
+  /** Draws the reticle and the bubble for the latest orientation snapshot on top of the frame. */
+  private void drawGuidanceOverlay() {
+    if (!guidanceOverlayReady) {
+      return;
+    }
+    float centerX = mWidth / 2f;
+    float centerY = mHeight / 2f;
+    guidanceOverlay.setReticle(
+        centerX, centerY, (float) mHeight / GUIDANCE_RETICLE_RATIO, GUIDANCE_RETICLE_STROKE);
+    guidanceOverlay.setBubble(
+        centerX + orientationSnapshot.getPitch() * GUIDANCE_PIXELS_PER_DEGREE,
+        centerY + orientationSnapshot.getRoll() * GUIDANCE_PIXELS_PER_DEGREE,
+        (float) mHeight / guidanceRatio);
+    guidanceOverlay.draw();
   }
 
   @Override
@@ -340,6 +528,8 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     GLES20.glViewport(0, 0, width, height);
     mWidth = width;
     mHeight = height;
+    planeDistanceEstimator.setViewport(width, height);
+    guidanceOverlay.setViewport(width, height);
   }
 
   @Override
@@ -365,9 +555,16 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     }
     // Notify ARCore session that the view size changed so that the perspective matrix and
     // the video background can be properly adjusted.
-    displayRotationHelper.updateSessionIfNeeded(session);
+    boolean displayGeometryChanged = displayRotationHelper.updateSessionIfNeeded(session);
 
     try {
+      if (displayGeometryChanged) {
+        // Depth, pose and IMU tilts are converted into the display axes the gate works in.
+        tiltFrame.setRotations(
+            displayRotationHelper.getCameraSensorToDisplayRotation(
+                session.getCameraConfig().getCameraId()),
+            displayRotationHelper.getDisplayRotationDegrees());
+      }
       session.setCameraTextureName(backgroundRenderer.getTextureId());
 
       // Obtain the current frame from ARSession. When the configuration is set to
@@ -375,22 +572,27 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
       // camera framerate.
       Frame frame = session.update();
       Camera camera = frame.getCamera();
+      planeRegistry.update(frame);
 
 
       if (frame.hasDisplayGeometryChanged() || calculateUVTransform) {
         calculateUVTransform = false;
-        float[] transform = getTextureTransformMatrix(frame);
-        occludedVirtualObject.setUvTransformMatrix(transform);
+        occludedVirtualObject.setUvTransformMatrix(frameContext.updateUvTransform(frame));
       }
 
 
-      // Retrieves the latest depth image for this frame.
-      if (isDepthSupported) {
-        depthTexture.update(frame);
+      // Retrieves the latest depth image for this frame. A new or resized texture is handed to
+      // the renderers.
+      if (isDepthSupported && depthTexture.update(frame)) {
+        backgroundRenderer.setDepthTexture(depthTexture.getDepthTexture());
+        occludedVirtualObject.setDepthTexture(
+            depthTexture.getDepthTexture(),
+            depthTexture.getDepthWidth(),
+            depthTexture.getDepthHeight());
       }
 
 
-      // Handle one tap per frame.
+      // Handle the taps queued since the last frame.
       handleTap(frame, camera);
 
       // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
@@ -408,102 +610,125 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
       }
 
 
+      // Roll and pitch from the same sensor event.
+      orientationHandler.getSnapshot(orientationSnapshot);
+
       // If not tracking, don't draw 3D objects, show tracking failure reason instead.
       if (camera.getTrackingState() == TrackingState.PAUSED) {
-        messageSnackbarHelper.showMessage(
+        messageSnackbarHelper.publishStatus(
             this, TrackingStateHelper.getTrackingFailureReasonString(camera));
+        drawGuidanceOverlay();
         return;
       }
 
-      // Get projection matrix.
-      float[] projmtx = new float[16];
-      camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
-
-      // Get camera matrix and draw.
-      float[] viewmtx = new float[16];
-      camera.getViewMatrix(viewmtx, 0);
-
-      // Compute lighting from average intensity of the image.
-      // The first three components are color scaling factors.
-      // The last one is the average pixel intensity in gamma space.
-      final float[] colorCorrectionRgba = new float[4];
-      frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+      // Get projection and camera matrices, and compute lighting from average intensity of the
+      // image, into the arrays reused across frames.
+      frameContext.update(frame, camera);
+      float[] projmtx = frameContext.getProjectionMatrix();
+      float[] viewmtx = frameContext.getViewMatrix();
+      float[] colorCorrectionRgba = frameContext.getColorCorrectionRgba();
 
       // No tracking error at this point. Inform user of what to do based on if planes are found.
-      String messageToShow = "";
-      if (hasTrackingPlane()) {
-        messageToShow = PLANES_FOUND_MESSAGE;
+      // Constant strings, so that publishing an unchanged message costs nothing.
+      String messageToShow;
+      if (planeRegistry.hasTrackingPlane()) {
+        messageToShow = isDepthSupported ? PLANES_FOUND_MESSAGE : PLANES_FOUND_NO_DEPTH_MESSAGE;
       } else {
-        messageToShow = SEARCHING_PLANE_MESSAGE;
-      }
-      if (!isDepthSupported) {
-        messageToShow += "\n" +  DEPTH_NOT_AVAILABLE_MESSAGE;
+        messageToShow =
+            isDepthSupported ? SEARCHING_PLANE_MESSAGE : SEARCHING_PLANE_NO_DEPTH_MESSAGE;
       }
-      messageSnackbarHelper.showMessage(this, messageToShow);
+      messageSnackbarHelper.publishStatus(this, messageToShow);
 
 
-      // Visualize anchors created by touch.
-      float scaleFactor = 1.0f;
-      for (Anchor anchor : anchors) {
+      // Visualize anchors created by touch, all tracked anchors in one instanced draw.
+      float[] anchorMatrices = frameContext.getInstanceMatrices();
+      int anchorCount = 0;
+      // Index loop, so no iterator is allocated per frame.
+      for (int i = 0; i < anchors.size() && anchorCount < ObjectRenderer.getMaxInstances(); i++) {
+        Anchor anchor = anchors.get(i);
         // checking if ARCore is actively tracking the anchor and has reliable position and orientation
         if (anchor.getTrackingState() != TrackingState.TRACKING) {
           continue;
         }
         // Get the current pose of an Anchor in world space. The Anchor pose is updated
         // during calls to session.update() as ARCore refines its estimate of the world.
-        anchor.getPose().toMatrix(anchorMatrix, 0);
-
-        // Update and draw the model and its shadow.
-        if (isDepthSupported) {
-          occludedVirtualObject.updateModelMatrix(anchorMatrix, scaleFactor);
-          occludedVirtualObject.draw(viewmtx, projmtx, colorCorrectionRgba, OBJECT_COLOR);
-        } else {
-          virtualObject.updateModelMatrix(anchorMatrix, scaleFactor);
-        }
-
-        /*
-        // Calculate the distance between the camera and the plane.
-        float distanceToPlane = calculateDistanceToPlane(anchor.getPose(), camera.getPose());
-        String distanceText = String.format(Locale.getDefault(), "%.2f", distanceToPlane);
-
-        // Update the TextView with the distance text.
-        //distance_TextView.setText(distanceText);
-
-         */
+        anchor.getPose().toMatrix(anchorMatrices, anchorCount * 16);
+        anchorCount++;
+      }
+      if (isDepthSupported) {
+        occludedVirtualObject.drawInstances(
+            viewmtx, projmtx, colorCorrectionRgba, OBJECT_COLOR, anchorMatrices, anchorCount);
+      }
 
+      DepthAnalysisResult analysis = depthTexture.getAnalysisResult();
+      boolean poseValid = planeDistanceEstimator.update(frame, camera);
+      boolean depthValid = isDepthSupported && analysis.getRoiDepthMm() > 0;
+
+      // Fuse depth, the plane-relative pose and the IMU into one distance and tilt estimate. Each
+      // source measures tilt in its own axes, so every tilt goes through tiltFrame first.
+      tiltFrame.fromDevice(orientationSnapshot.getRoll(), orientationSnapshot.getPitch());
+      alignmentEstimator.predict(
+          frame.getTimestamp(),
+          orientationSnapshot.getTimestampNs() != 0,
+          tiltFrame.getRollDeg(),
+          tiltFrame.getPitchDeg());
+      if (depthValid) {
+        alignmentEstimator.updateDepthDistance(
+            analysis.getTimestamp(), analysis.getRoiDepthMm(), depthTexture.isDepthConfident());
+      } else if (poseValid) {
+        // The tracked plane is often the table under the arm, so it is only used without depth.
+        alignmentEstimator.updatePoseDistance(planeDistanceEstimator.getDistanceMm());
       }
+      // Prefer the tilt relative to the skin measured from depth; the IMU only knows the tilt
+      // relative to gravity, which is wrong whenever the arm is not horizontal.
+      if (analysis.isPlaneValid()) {
+        tiltFrame.fromDepthImage(analysis.getPlaneTiltXDeg(), analysis.getPlaneTiltYDeg());
+        alignmentEstimator.updatePlaneTilt(
+            analysis.getTimestamp(), tiltFrame.getRollDeg(), tiltFrame.getPitchDeg());
+      } else if (poseValid) {
+        tiltFrame.fromView(
+            planeDistanceEstimator.getTiltXDeg(), planeDistanceEstimator.getTiltYDeg());
+        alignmentEstimator.updatePlaneTilt(
+            frame.getTimestamp(), tiltFrame.getRollDeg(), tiltFrame.getPitchDeg());
+      } else {
+        alignmentEstimator.updateImuTilt();
+      }
+      int depthMm =
+          alignmentEstimator.hasDistance() ? Math.round(alignmentEstimator.getDistanceMm()) : 0;
 
-      if (depthTexture.getDepthValue() >= 701) {
+      if (depthMm >= 701) {
         // above 701, ratio will increase by 1 every 74 mm
-        int r = Math.min(15, Math.max(10, Math.round(depthTexture.getDepthValue() / 74)));//74.2
-        centerOrientationRenderer.updateCircleSize(r);
+        guidanceRatio = Math.min(15, Math.max(10, Math.round(depthMm / 74)));//74.2
       }
       else{
         // depthImage Value is smaller than 701, ratio will be 9 for the center circle
-        int r = 9;
-        centerOrientationRenderer.updateCircleSize(r);
+        guidanceRatio = 9;
+      }
+      if (guidanceOverlayReady) {
+        drawGuidanceOverlay();
+      } else {
+        centerOrientationRenderer.updateCircleSize(guidanceRatio);
       }
 
 
-      // Format the depth value as a string.
-      String distanceText = String.format("%d", depthTexture.getDepthValue());
-
-      // Display the distance text in a TextView.
-      distance_TextView.setText(distanceText);
-
-      // Format the orientation value as a string.
-      String orientation = String.format("%.2f '", orientationHandler.getdegree());
-
-      // Display the orientation text in a TextView.
-      orientation_TextView.setText(orientation);
-
-
-      String orientation2 = String.format("%.2f '", orientationHandler.getDegree2());
-
-      // Display the orientation text in a TextView.
-      orientation2_TextView.setText(orientation2);
-
-      if (depthTexture.getDepthValue() <= 700 && orientationHandler.getdegree() == 0f &&  orientationHandler.getDegree2() == 0f){
+      // Hand the values to the HUD; the text views are updated on the UI thread.
+      hudPublisher.publish(distanceField, depthMm);
+      hudPublisher.publish(rollField, orientationSnapshot.getRoll());
+      hudPublisher.publish(pitchField, orientationSnapshot.getPitch());
+
+      // Gate on where the fused state will be once the depth latency has passed. Pose distances are
+      // already smooth and there is no depth confidence to check without depth.
+      boolean measured = (depthValid || poseValid) && alignmentEstimator.hasTilt();
+      readinessEngine.update(
+          frame.getTimestamp(),
+          measured ? Math.round(alignmentEstimator.predictDistanceMm(ALIGNMENT_LOOKAHEAD_S)) : 0,
+          isDepthSupported ? depthTexture.isDepthStable() : poseValid,
+          isDepthSupported ? depthTexture.isDepthConfident() : poseValid,
+          alignmentEstimator.predictRollDeg(ALIGNMENT_LOOKAHEAD_S),
+          alignmentEstimator.predictPitchDeg(ALIGNMENT_LOOKAHEAD_S));
+
+      // Fires once per arming, so the capture screen is never started twice.
+      if (readinessEngine.consumeTrigger()) {
         try {
           Intent secondActivityIntent = new Intent(DepthCodelabActivity.this, ImageCaptureActivity.class);
           startActivity(secondActivityIntent);
@@ -518,10 +743,17 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
   }
 
 
-    private void handleTap(Frame frame, Camera camera) {
-    MotionEvent tap = tapHelper.poll();
-    if (tap != null && camera.getTrackingState() == TrackingState.TRACKING) {
-      for (HitResult hit : frame.hitTest(tap)) {
+  private void handleTap(Frame frame, Camera camera) {
+    // Taps made while not tracking are drained too, so they are not replayed later.
+    tapFrame = frame;
+    tapTracking = camera.getTrackingState() == TrackingState.TRACKING;
+    tapHelper.drain(gestureConsumer);
+    tapFrame = null;
+  }
+
+  private void onGesture(int action, float x, float y, long eventTime) {
+    if (action == TapHelper.ACTION_TAP && tapTracking) {
+      for (HitResult hit : tapFrame.hitTest(x, y)) {
         Trackable trackable = hit.getTrackable();
         if (trackable instanceof Plane && ((Plane) trackable).isPoseInPolygon(hit.getHitPose())) {
           // Hits are sorted by depth. Consider only closest hit on a plane or oriented point.
@@ -541,16 +773,6 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
     }
   }
 
-  // Checks if we detected at least one plane.
-  private boolean hasTrackingPlane() {
-    for (Plane plane : session.getAllTrackables(Plane.class)) {
-      if (plane.getTrackingState() == TrackingState.TRACKING) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   public void onSavePicture(View view) {
     // Here just a set a flag so we can copy
     // the image from the onDrawFrame() method.
@@ -603,40 +825,6 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
 
   }
 
-  /**
-   * This method returns a transformation matrix that when applied to screen space uvs makes them
-   * match correctly with the quad texture coords used to render the camera feed. It takes into
-   * account device orientation.
-   */
-  private static float[] getTextureTransformMatrix(Frame frame) {
-    float[] frameTransform = new float[6];
-    float[] uvTransform = new float[9];
-    // XY pairs of coordinates in NDC space that constitute the origin and points along the two
-    // principal axes.
-    float[] ndcBasis = {0, 0, 1, 0, 0, 1};
-
-    // Temporarily store the transformed points into outputTransform.
-    frame.transformCoordinates2d(
-        Coordinates2d.OPENGL_NORMALIZED_DEVICE_COORDINATES,
-        ndcBasis,
-        Coordinates2d.TEXTURE_NORMALIZED,
-        frameTransform);
-
-    // Convert the transformed points into an affine transform and transpose it.
-    float ndcOriginX = frameTransform[0];
-    float ndcOriginY = frameTransform[1];
-    uvTransform[0] = frameTransform[2] - ndcOriginX;
-    uvTransform[1] = frameTransform[3] - ndcOriginY;
-    uvTransform[2] = 0;
-    uvTransform[3] = frameTransform[4] - ndcOriginX;
-    uvTransform[4] = frameTransform[5] - ndcOriginY;
-    uvTransform[5] = 0;
-    uvTransform[6] = ndcOriginX;
-    uvTransform[7] = ndcOriginY;
-    uvTransform[8] = 1;
-
-    return uvTransform;
-  }
 }
 
 
@@ -644,22 +832,6 @@ public class DepthCodelabActivity extends AppCompatActivity implements GLSurface
 
   /*
 
-  // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
-  // parallel to plane's normal, for example plane's center pose or hit test pose.
-  private static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
-    float[] normal = new float[3];
-    float cameraX = cameraPose.tx();
-    float cameraY = cameraPose.ty();
-    float cameraZ = cameraPose.tz();
-    // Get transformed Y axis of plane's coordinate system.
-    planePose.getTransformedAxis(1, 1.0f, normal, 0);
-    // Compute dot product of plane's normal with vector from camera to plane center.
-    return (cameraX - planePose.tx()) * normal[0]
-            + (cameraY - planePose.ty()) * normal[1]
-            + (cameraZ - planePose.tz()) * normal[2];
-  }
-
-
   // Calculate the distance between the camera and the object
   private float calculateDistanceToObj(Pose objectPose, Pose cameraPose) {
     float dx = objectPose.tx() - cameraPose.tx();
@@ -0,0 +1,57 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summarises the raw depth confidence image over the ROI patch.
+ *
+ * <p>Reports the mean confidence of the patch and the fraction of its pixels whose confidence
+ * reaches {@link #setPixelThreshold(int)}. Frames without a confidence image (smoothed depth) are
+ * reported as having no confidence data, which readers treat as "unknown" rather than "bad".
+ */
+public final class DepthConfidenceEstimator implements DepthAnalysisWorker.Stage {
+  private final DepthRoiSampler roiSampler;
+  private final int[] bounds = new int[4];
+
+  private int pixelThreshold = 128;
+
+  /** @param roiSampler sampler whose patch (already centred for the frame) defines the ROI. */
+  public DepthConfidenceEstimator(DepthRoiSampler roiSampler) {
+    this.roiSampler = roiSampler;
+  }
+
+  /** Minimum per-pixel confidence, 0 to 255, for a pixel to count as confident. */
+  public void setPixelThreshold(int threshold) {
+    pixelThreshold = Math.max(0, Math.min(255, threshold));
+  }
+
+  @Override
+  public void process(DepthFrame frame, DepthAnalysisResult result) {
+    result.hasConfidence = frame.hasConfidence();
+    if (!result.hasConfidence) {
+      result.roiConfidence = 0f;
+      result.roiConfidentFraction = 0f;
+      return;
+    }
+
+    int width = frame.getWidth();
+    roiSampler.computePatchBounds(width, frame.getHeight(), bounds);
+    ByteBuffer confidence = frame.getConfidence();
+    long sum = 0;
+    int confident = 0;
+    int count = 0;
+    for (int y = bounds[1]; y <= bounds[3]; y++) {
+      int rowOffset = y * width;
+      for (int x = bounds[0]; x <= bounds[2]; x++) {
+        int c = confidence.get(rowOffset + x) & 0xFF;
+        sum += c;
+        if (c >= pixelThreshold) {
+          confident++;
+        }
+        count++;
+      }
+    }
+    result.roiConfidence = count == 0 ? 0f : sum / (255f * count);
+    result.roiConfidentFraction = count == 0 ? 0f : (float) confident / count;
+  }
+}
@@ -0,0 +1,191 @@
+package com.google.ar.core.codelab.depth;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * CPU copy of one DEPTH16 image, owned by {@link DepthAnalysisWorker}. The samples are tightly
+ * packed (row stride = 2 * width) in native byte order in a direct buffer that is reused for as
+ * long as the resolution stays the same. Raw depth frames also carry the matching 8-bit confidence
+ * image, packed the same way with one byte per pixel.
+ */
+public final class DepthFrame {
+  private ByteBuffer depth;
+  private ShortBuffer depthSamples;
+  private ByteBuffer confidence;
+  private boolean hasConfidence;
+  private int width;
+  private int height;
+  private long timestamp;
+
+  // Pinhole intrinsics scaled to the depth image resolution, in depth pixels.
+  private boolean hasIntrinsics;
+  private float focalLengthX;
+  private float focalLengthY;
+  private float principalPointX;
+  private float principalPointY;
+
+  // Normalized ROI centre in the depth image, captured on the GL thread with the frame.
+  private float roiCenterU = 0.5f;
+  private float roiCenterV = 0.5f;
+
+  /**
+   * Copies the depth plane of {@code image}, and the confidence plane if {@code confidenceImage} is
+   * not null. Only allocates when the resolution grows.
+   */
+  void copyFrom(Image image, Image confidenceImage, float roiU, float roiV) {
+    width = image.getWidth();
+    height = image.getHeight();
+    timestamp = image.getTimestamp();
+    roiCenterU = roiU;
+    roiCenterV = roiV;
+
+    int packedRowBytes = width * 2;
+    ByteBuffer packedDepth = ensureCapacity(depth, packedRowBytes * height);
+    if (packedDepth != depth) {
+      depth = packedDepth;
+      depthSamples = depth.asShortBuffer();
+    }
+
+    Image.Plane plane = image.getPlanes()[0];
+    copyPlane(plane.getBuffer(), plane.getRowStride(), packedRowBytes, height, depth);
+
+    hasConfidence = confidenceImage != null;
+    if (hasConfidence) {
+      confidence = ensureCapacity(confidence, width * height);
+      Image.Plane confidencePlane = confidenceImage.getPlanes()[0];
+      copyPlane(
+          confidencePlane.getBuffer(), confidencePlane.getRowStride(), width, height, confidence);
+    }
+  }
+
+  /**
+   * Records the camera intrinsics, given for an image of {@code imageWidth} x {@code imageHeight},
+   * rescaled to this frame's depth resolution. The depth image covers the same field of view as the
+   * camera texture, so a plain scale is enough. Must be called after {@link #copyFrom}.
+   */
+  void setIntrinsics(float[] focalLength, float[] principalPoint, int imageWidth, int imageHeight) {
+    hasIntrinsics = imageWidth > 0 && imageHeight > 0;
+    if (!hasIntrinsics) {
+      return;
+    }
+    float scaleX = (float) width / imageWidth;
+    float scaleY = (float) height / imageHeight;
+    focalLengthX = focalLength[0] * scaleX;
+    focalLengthY = focalLength[1] * scaleY;
+    principalPointX = principalPoint[0] * scaleX;
+    principalPointY = principalPoint[1] * scaleY;
+  }
+
+  static ByteBuffer ensureCapacity(ByteBuffer buffer, int bytes) {
+    if (buffer == null || buffer.capacity() < bytes) {
+      buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+    buffer.clear();
+    buffer.limit(bytes);
+    return buffer;
+  }
+
+  /**
+   * Copies {@code rows} rows of {@code rowBytes} each from a strided plane into a packed buffer. The
+   * source position and limit are restored afterwards so the plane can still be uploaded to GL.
+   */
+  static void copyPlane(ByteBuffer src, int rowStride, int rowBytes, int rows, ByteBuffer dst) {
+    int srcPosition = src.position();
+    int srcLimit = src.limit();
+    dst.position(0);
+    if (rowStride == rowBytes) {
+      src.limit(srcPosition + rowBytes * rows);
+      dst.put(src);
+    } else {
+      for (int y = 0; y < rows; y++) {
+        int rowStart = srcPosition + y * rowStride;
+        src.limit(rowStart + rowBytes);
+        src.position(rowStart);
+        dst.put(src);
+      }
+    }
+    src.limit(srcLimit);
+    src.position(srcPosition);
+    dst.position(0);
+  }
+
+  /** Packed DEPTH16 samples in native byte order, read with absolute indexing. */
+  public ByteBuffer getDepth() {
+    return depth;
+  }
+
+  /**
+   * The samples of {@link #getDepth()} as a view that lives as long as the buffer. Callers set its
+   * position and limit as they need.
+   */
+  ShortBuffer getDepthSamples() {
+    return depthSamples;
+  }
+
+  /** Whether {@link #getConfidence()} holds data for this frame. */
+  public boolean hasConfidence() {
+    return hasConfidence;
+  }
+
+  /**
+   * Packed per-pixel confidence, 0 (none) to 255 (full), or stale data if {@link #hasConfidence()}
+   * is false.
+   */
+  public ByteBuffer getConfidence() {
+    return confidence;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Bytes between the start of consecutive rows of {@link #getDepth()}. */
+  public int getRowStride() {
+    return width * 2;
+  }
+
+  /** Whether the camera intrinsics below are known for this frame. */
+  public boolean hasIntrinsics() {
+    return hasIntrinsics;
+  }
+
+  /** Horizontal focal length in depth pixels. */
+  public float getFocalLengthX() {
+    return focalLengthX;
+  }
+
+  /** Vertical focal length in depth pixels. */
+  public float getFocalLengthY() {
+    return focalLengthY;
+  }
+
+  /** Horizontal principal point in depth pixels. */
+  public float getPrincipalPointX() {
+    return principalPointX;
+  }
+
+  /** Vertical principal point in depth pixels. */
+  public float getPrincipalPointY() {
+    return principalPointY;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public float getRoiCenterU() {
+    return roiCenterU;
+  }
+
+  public float getRoiCenterV() {
+    return roiCenterV;
+  }
+}
@@ -0,0 +1,256 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Multi-resolution summary of one depth frame for constant time region queries.
+ *
+ * <p>Two structures are built in a single pass over the frame:
+ *
+ * <ul>
+ *   <li>Summed-area tables of the valid sample count, sum and sum of squares, giving the exact
+ *       valid count, mean and variance of any rectangle with four lookups each.
+ *   <li>A min/max/mean/valid-count pyramid, each level halving the resolution of the previous one.
+ *       Rectangle min/max queries read at most 3x3 cells of a level chosen from the rectangle size,
+ *       so they are O(1) but conservative: the returned bounds cover a slightly larger area.
+ * </ul>
+ *
+ * <p>Zero depth samples are invalid and excluded everywhere. Storage is reused while the resolution
+ * stays the same. Coordinates are inclusive pixel bounds in the depth image.
+ */
+public final class DepthPyramid {
+  private static final int NO_MIN = 0xFFFF;
+
+  private int width;
+  private int height;
+  private int tableStride;
+
+  // Summed-area tables with a zero row and column in front: entry (x, y) covers [0, x) x [0, y).
+  private int[] countTable = new int[0];
+  private long[] sumTable = new long[0];
+  private long[] sumSquaresTable = new long[0];
+
+  private int levelCount;
+  private int[] levelWidths = new int[0];
+  private int[] levelHeights = new int[0];
+  private char[][] levelMin = new char[0][];
+  private char[][] levelMax = new char[0][];
+  private float[][] levelMean = new float[0][];
+  private int[][] levelValidCount = new int[0][];
+
+  /** Rebuilds the tables and pyramid from a packed or strided DEPTH16 buffer. */
+  public void build(ByteBuffer depth, int width, int height, int rowStride) {
+    if (width != this.width || height != this.height) {
+      allocate(width, height);
+    }
+    buildTablesAndBaseLevel(depth, rowStride);
+    for (int level = 1; level < levelCount; level++) {
+      reduceLevel(level);
+    }
+  }
+
+  private void allocate(int width, int height) {
+    this.width = width;
+    this.height = height;
+    tableStride = width + 1;
+    int tableSize = tableStride * (height + 1);
+    countTable = new int[tableSize];
+    sumTable = new long[tableSize];
+    sumSquaresTable = new long[tableSize];
+
+    int levels = 1;
+    for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) {
+      levels++;
+    }
+    levelCount = levels;
+    levelWidths = new int[levels];
+    levelHeights = new int[levels];
+    levelMin = new char[levels][];
+    levelMax = new char[levels][];
+    levelMean = new float[levels][];
+    levelValidCount = new int[levels][];
+    int w = width;
+    int h = height;
+    for (int level = 0; level < levels; level++) {
+      levelWidths[level] = w;
+      levelHeights[level] = h;
+      levelMin[level] = new char[w * h];
+      levelMax[level] = new char[w * h];
+      levelMean[level] = new float[w * h];
+      levelValidCount[level] = new int[w * h];
+      w = (w + 1) / 2;
+      h = (h + 1) / 2;
+    }
+  }
+
+  private void buildTablesAndBaseLevel(ByteBuffer depth, int rowStride) {
+    char[] min = levelMin[0];
+    char[] max = levelMax[0];
+    float[] mean = levelMean[0];
+    int[] valid = levelValidCount[0];
+    for (int y = 0; y < height; y++) {
+      int rowCount = 0;
+      long rowSum = 0;
+      long rowSumSquares = 0;
+      int above = y * tableStride;
+      int current = above + tableStride;
+      for (int x = 0; x < width; x++) {
+        int mm = depth.getShort(y * rowStride + x * 2) & 0xFFFF;
+        int cell = y * width + x;
+        if (mm != 0) {
+          rowCount++;
+          rowSum += mm;
+          rowSumSquares += (long) mm * mm;
+          min[cell] = (char) mm;
+          max[cell] = (char) mm;
+          mean[cell] = mm;
+          valid[cell] = 1;
+        } else {
+          min[cell] = NO_MIN;
+          max[cell] = 0;
+          mean[cell] = 0f;
+          valid[cell] = 0;
+        }
+        countTable[current + x + 1] = countTable[above + x + 1] + rowCount;
+        sumTable[current + x + 1] = sumTable[above + x + 1] + rowSum;
+        sumSquaresTable[current + x + 1] = sumSquaresTable[above + x + 1] + rowSumSquares;
+      }
+    }
+  }
+
+  private void reduceLevel(int level) {
+    int srcWidth = levelWidths[level - 1];
+    int srcHeight = levelHeights[level - 1];
+    char[] srcMin = levelMin[level - 1];
+    char[] srcMax = levelMax[level - 1];
+    float[] srcMean = levelMean[level - 1];
+    int[] srcValid = levelValidCount[level - 1];
+    int dstWidth = levelWidths[level];
+    int dstHeight = levelHeights[level];
+    for (int y = 0; y < dstHeight; y++) {
+      for (int x = 0; x < dstWidth; x++) {
+        int lo = NO_MIN;
+        int hi = 0;
+        float sum = 0f;
+        int count = 0;
+        for (int sy = 2 * y; sy <= 2 * y + 1 && sy < srcHeight; sy++) {
+          for (int sx = 2 * x; sx <= 2 * x + 1 && sx < srcWidth; sx++) {
+            int src = sy * srcWidth + sx;
+            lo = Math.min(lo, srcMin[src]);
+            hi = Math.max(hi, srcMax[src]);
+            sum += srcMean[src] * srcValid[src];
+            count += srcValid[src];
+          }
+        }
+        int dst = y * dstWidth + x;
+        levelMin[level][dst] = (char) lo;
+        levelMax[level][dst] = (char) hi;
+        levelMean[level][dst] = count == 0 ? 0f : sum / count;
+        levelValidCount[level][dst] = count;
+      }
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Number of valid samples in the rectangle. */
+  public int queryValidCount(int x0, int y0, int x1, int y1) {
+    return (int) rectSum(countTable, null, x0, y0, x1, y1);
+  }
+
+  /** Mean of the valid samples in the rectangle in millimeters, or 0 if there are none. */
+  public float queryMean(int x0, int y0, int x1, int y1) {
+    int count = queryValidCount(x0, y0, x1, y1);
+    return count == 0 ? 0f : (float) rectSum(null, sumTable, x0, y0, x1, y1) / count;
+  }
+
+  /** Variance of the valid samples in the rectangle in mm^2, or 0 if there are fewer than two. */
+  public float queryVariance(int x0, int y0, int x1, int y1) {
+    int count = queryValidCount(x0, y0, x1, y1);
+    if (count < 2) {
+      return 0f;
+    }
+    double sum = rectSum(null, sumTable, x0, y0, x1, y1);
+    double sumSquares = rectSum(null, sumSquaresTable, x0, y0, x1, y1);
+    double mean = sum / count;
+    return (float) Math.max(0.0, sumSquares / count - mean * mean);
+  }
+
+  /**
+   * Conservative min and max of the valid samples around the rectangle, written to {@code out} as
+   * {min, max}. The result covers every sample in the rectangle and possibly some neighbours.
+   *
+   * @return false if the covered area holds no valid sample.
+   */
+  public boolean queryMinMax(int x0, int y0, int x1, int y1, int[] out) {
+    x0 = clamp(x0, width);
+    x1 = clamp(x1, width);
+    y0 = clamp(y0, height);
+    y1 = clamp(y1, height);
+    int extent = Math.max(x1 - x0, y1 - y0) + 1;
+    // Pick the level whose cells are more than half the rectangle size: at most 3x3 cells.
+    int level = Math.min(levelCount - 1, 31 - Integer.numberOfLeadingZeros(extent));
+    int levelWidth = levelWidths[level];
+    char[] min = levelMin[level];
+    char[] max = levelMax[level];
+    int lo = NO_MIN;
+    int hi = 0;
+    for (int y = y0 >> level; y <= y1 >> level; y++) {
+      for (int x = x0 >> level; x <= x1 >> level; x++) {
+        lo = Math.min(lo, min[y * levelWidth + x]);
+        hi = Math.max(hi, max[y * levelWidth + x]);
+      }
+    }
+    out[0] = lo == NO_MIN ? 0 : lo;
+    out[1] = hi;
+    return hi != 0;
+  }
+
+  /** Number of pyramid levels; level 0 has the full depth resolution. */
+  public int getLevelCount() {
+    return levelCount;
+  }
+
+  public int getLevelWidth(int level) {
+    return levelWidths[level];
+  }
+
+  public int getLevelHeight(int level) {
+    return levelHeights[level];
+  }
+
+  /** Mean valid depth of a pyramid cell in millimeters, or 0 if it holds no valid sample. */
+  public float getLevelMean(int level, int x, int y) {
+    return levelMean[level][y * levelWidths[level] + x];
+  }
+
+  /** Number of valid samples under a pyramid cell. */
+  public int getLevelValidCount(int level, int x, int y) {
+    return levelValidCount[level][y * levelWidths[level] + x];
+  }
+
+  private long rectSum(int[] intTable, long[] longTable, int x0, int y0, int x1, int y1) {
+    x0 = clamp(x0, width);
+    x1 = clamp(x1, width) + 1;
+    y0 = clamp(y0, height);
+    y1 = clamp(y1, height) + 1;
+    int a = y0 * tableStride + x0;
+    int b = y0 * tableStride + x1;
+    int c = y1 * tableStride + x0;
+    int d = y1 * tableStride + x1;
+    if (intTable != null) {
+      return (long) intTable[d] - intTable[b] - intTable[c] + intTable[a];
+    }
+    return longTable[d] - longTable[b] - longTable[c] + longTable[a];
+  }
+
+  private static int clamp(int value, int size) {
+    return Math.max(0, Math.min(size - 1, value));
+  }
+}
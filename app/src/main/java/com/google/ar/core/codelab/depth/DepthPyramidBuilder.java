@@ -0,0 +1,31 @@
+package com.google.ar.core.codelab.depth;
+
+/**
+ * Builds a {@link DepthPyramid} for every analysed depth frame when enabled. Each result slot owns
+ * its own pyramid, so readers can query the one they hold while the worker builds the next.
+ */
+public final class DepthPyramidBuilder implements DepthAnalysisWorker.Stage {
+  private volatile boolean enabled = false;
+
+  /** Turns building on or off. Safe to call from any thread; applies from the next frame. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void process(DepthFrame frame, DepthAnalysisResult result) {
+    result.pyramidValid = enabled;
+    if (!enabled) {
+      return;
+    }
+    if (result.pyramid == null) {
+      result.pyramid = new DepthPyramid();
+    }
+    result.pyramid.build(
+        frame.getDepth(), frame.getWidth(), frame.getHeight(), frame.getRowStride());
+  }
+}
@@ -0,0 +1,79 @@
+package com.google.ar.core.codelab.depth;
+
+/**
+ * Precomputed unprojection rays for one depth resolution and set of intrinsics.
+ *
+ * <p>For a pinhole camera the ray through pixel (x, y) is ((x - cx) / fx, (y - cy) / fy, 1), whose
+ * x component only depends on the column and y component only on the row. The table therefore
+ * stores one value per column and one per row, and unprojecting a depth sample {@code z} is two
+ * multiplications: {@code X = rayX[x] * z}, {@code Y = rayY[y] * z}. The table is rebuilt only when
+ * the resolution or the intrinsics change. Not thread safe; used on the analysis worker thread.
+ */
+public final class DepthRayTable {
+  private float[] rayX = new float[0];
+  private float[] rayY = new float[0];
+  private int width = -1;
+  private int height = -1;
+  private float focalLengthX;
+  private float focalLengthY;
+  private float principalPointX;
+  private float principalPointY;
+
+  /**
+   * Rebuilds the table if {@code frame} has a different resolution or intrinsics than the last one.
+   *
+   * @return false if the frame carries no intrinsics and the table cannot be used for it.
+   */
+  public boolean update(DepthFrame frame) {
+    if (!frame.hasIntrinsics()) {
+      return false;
+    }
+    if (frame.getWidth() == width
+        && frame.getHeight() == height
+        && frame.getFocalLengthX() == focalLengthX
+        && frame.getFocalLengthY() == focalLengthY
+        && frame.getPrincipalPointX() == principalPointX
+        && frame.getPrincipalPointY() == principalPointY) {
+      return true;
+    }
+    width = frame.getWidth();
+    height = frame.getHeight();
+    focalLengthX = frame.getFocalLengthX();
+    focalLengthY = frame.getFocalLengthY();
+    principalPointX = frame.getPrincipalPointX();
+    principalPointY = frame.getPrincipalPointY();
+    if (rayX.length < width) {
+      rayX = new float[width];
+    }
+    if (rayY.length < height) {
+      rayY = new float[height];
+    }
+    float invFx = 1f / focalLengthX;
+    float invFy = 1f / focalLengthY;
+    for (int x = 0; x < width; x++) {
+      rayX[x] = (x - principalPointX) * invFx;
+    }
+    for (int y = 0; y < height; y++) {
+      rayY[y] = (y - principalPointY) * invFy;
+    }
+    return true;
+  }
+
+  /** Camera space X of column {@code x} per unit of depth. */
+  public float rayX(int x) {
+    return rayX[x];
+  }
+
+  /** Camera space Y of row {@code y} per unit of depth. */
+  public float rayY(int y) {
+    return rayY[y];
+  }
+
+  /**
+   * Area covered by one pixel on a surface facing the camera at depth {@code z}, in the square of
+   * the unit of {@code z}.
+   */
+  public float pixelFootprint(float z) {
+    return z * z / (focalLengthX * focalLengthY);
+  }
+}
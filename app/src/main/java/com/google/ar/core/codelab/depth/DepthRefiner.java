@@ -0,0 +1,177 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Fills holes in the depth image and removes speckle while keeping depth edges.
+ *
+ * <p>Runs on the analysis worker before every other step, so the ROI distance, plane fit, point
+ * cloud and pyramid all see refined depth. Two steps are applied:
+ *
+ * <ol>
+ *   <li>Hole filling: each invalid pixel takes the mean of its valid 3x3 neighbours, repeated for a
+ *       few passes so that small holes close from the border inwards.
+ *   <li>Bilateral smoothing: a 5x5 spatial Gaussian weighted by a range Gaussian on the depth
+ *       difference, both read from precomputed tables. Pixels across a depth edge get almost no
+ *       weight, so the skin surface is smoothed without bleeding into the background.
+ * </ol>
+ *
+ * <p>The analysis worker writes the refined image back into the frame and into a buffer owned by
+ * the result slot, so the GL thread can upload it as the depth texture. Scratch arrays are reused
+ * between frames. Plain Java, so it is also benchmarked on the desktop JVM, see benchmarks/.
+ */
+public final class DepthRefiner {
+  private static final int RADIUS = 2;
+  private static final int KERNEL_SIZE = 2 * RADIUS + 1;
+
+  private volatile boolean enabled = false;
+  private int holeFillPasses = 2;
+
+  private final float[] spatialWeights = new float[KERNEL_SIZE * KERNEL_SIZE];
+  private float[] rangeWeights = new float[0];
+
+  private short[] ping = new short[0];
+  private short[] pong = new short[0];
+
+  public DepthRefiner() {
+    setSigmas(1.5f, 25f);
+  }
+
+  /** Turns refinement on or off. Safe to call from any thread; applies from the next frame. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Number of 3x3 hole filling passes; each pass closes holes by about one pixel from each side. */
+  public void setHoleFillPasses(int passes) {
+    holeFillPasses = Math.max(0, passes);
+  }
+
+  /**
+   * Sets the bilateral filter widths. Must be called before the worker starts.
+   *
+   * @param spatialSigma spatial standard deviation in pixels.
+   * @param rangeSigmaMm depth difference standard deviation in millimeters.
+   */
+  public void setSigmas(float spatialSigma, float rangeSigmaMm) {
+    for (int dy = -RADIUS; dy <= RADIUS; dy++) {
+      for (int dx = -RADIUS; dx <= RADIUS; dx++) {
+        spatialWeights[(dy + RADIUS) * KERNEL_SIZE + dx + RADIUS] =
+            (float) Math.exp(-(dx * dx + dy * dy) / (2f * spatialSigma * spatialSigma));
+      }
+    }
+    // Differences beyond three sigmas get no weight at all.
+    int rangeLimit = (int) Math.ceil(3f * rangeSigmaMm);
+    rangeWeights = new float[rangeLimit + 1];
+    for (int d = 0; d <= rangeLimit; d++) {
+      rangeWeights[d] = (float) Math.exp(-(d * d) / (2f * rangeSigmaMm * rangeSigmaMm));
+    }
+  }
+
+  /**
+   * Refines a {@code width} x {@code height} depth image read from {@code samples}, starting at its
+   * position. The buffer is only read.
+   *
+   * @return the refined image, in an array owned by the refiner that the next call overwrites.
+   */
+  public short[] refine(ShortBuffer samples, int width, int height) {
+    int size = width * height;
+    if (ping.length < size) {
+      ping = new short[size];
+      pong = new short[size];
+    }
+    samples.get(ping, 0, size);
+
+    short[] src = ping;
+    short[] dst = pong;
+    for (int pass = 0; pass < holeFillPasses; pass++) {
+      if (!fillHoles(src, dst, width, height)) {
+        break;
+      }
+      short[] tmp = src;
+      src = dst;
+      dst = tmp;
+    }
+    bilateral(src, dst, width, height);
+    return dst;
+  }
+
+  /**
+   * Refines a {@code width} x {@code height} depth image from {@code src} into {@code dst}, both
+   * starting at their positions, without going through an array the caller has to copy.
+   */
+  public void refine(ShortBuffer src, int width, int height, ShortBuffer dst) {
+    dst.put(refine(src, width, height), 0, width * height);
+  }
+
+  /** One hole filling pass from {@code src} into {@code dst}. Returns false if there was no hole. */
+  private static boolean fillHoles(short[] src, short[] dst, int width, int height) {
+    boolean hadHoles = false;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int i = y * width + x;
+        if (src[i] != 0) {
+          dst[i] = src[i];
+          continue;
+        }
+        hadHoles = true;
+        int sum = 0;
+        int count = 0;
+        for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+          for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+            int mm = src[ny * width + nx] & 0xFFFF;
+            if (mm != 0) {
+              sum += mm;
+              count++;
+            }
+          }
+        }
+        dst[i] = count == 0 ? 0 : (short) (sum / count);
+      }
+    }
+    return hadHoles;
+  }
+
+  private void bilateral(short[] src, short[] dst, int width, int height) {
+    float[] range = rangeWeights;
+    int rangeLimit = range.length - 1;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int i = y * width + x;
+        int center = src[i] & 0xFFFF;
+        if (center == 0) {
+          dst[i] = 0;
+          continue;
+        }
+        float weightSum = 0f;
+        float valueSum = 0f;
+        for (int dy = -RADIUS; dy <= RADIUS; dy++) {
+          int ny = y + dy;
+          if (ny < 0 || ny >= height) {
+            continue;
+          }
+          int kernelRow = (dy + RADIUS) * KERNEL_SIZE + RADIUS;
+          for (int dx = -RADIUS; dx <= RADIUS; dx++) {
+            int nx = x + dx;
+            if (nx < 0 || nx >= width) {
+              continue;
+            }
+            int mm = src[ny * width + nx] & 0xFFFF;
+            int difference = Math.abs(mm - center);
+            if (mm == 0 || difference > rangeLimit) {
+              continue;
+            }
+            float weight = spatialWeights[kernelRow + dx] * range[difference];
+            weightSum += weight;
+            valueSum += weight * mm;
+          }
+        }
+        dst[i] = (short) Math.round(valueSum / weightSum);
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Robust depth estimate over a square patch of a DEPTH16 image.
+ *
+ * <p>The patch is centred on a normalized (u, v) position in the depth image, usually the screen
+ * centre mapped through {@link com.google.ar.core.Frame#transformCoordinates2d}. Zero samples are
+ * treated as invalid and skipped, values are read as unsigned 16-bit millimeters, and the result is
+ * either the median or a trimmed mean of the remaining samples.
+ *
+ * <p>All work happens on a preallocated scratch array, so {@link #sample} does not allocate. An
+ * instance is not thread safe; use one sampler per thread.
+ */
+public final class DepthRoiSampler {
+
+  /** How the valid samples of the patch are reduced to a single value. */
+  public enum Estimator {
+    MEDIAN,
+    TRIMMED_MEAN
+  }
+
+  private final int[] scratch;
+  private final int maxPatchSize;
+
+  private int patchSize;
+  private int sampleStep = 1;
+  private float trimFraction = 0.2f;
+  private Estimator estimator = Estimator.MEDIAN;
+
+  // Normalized patch centre in the depth image.
+  private float centerU = 0.5f;
+  private float centerV = 0.5f;
+
+  private int validCount;
+  private final int[] bounds = new int[4];
+
+  /**
+   * @param maxPatchSize largest patch edge length (in depth pixels) this sampler will ever be asked
+   *     to use. The scratch storage is sized for it up front.
+   */
+  public DepthRoiSampler(int maxPatchSize) {
+    if (maxPatchSize <= 0) {
+      throw new IllegalArgumentException("maxPatchSize must be positive: " + maxPatchSize);
+    }
+    this.maxPatchSize = maxPatchSize;
+    this.patchSize = Math.min(9, maxPatchSize);
+    this.scratch = new int[maxPatchSize * maxPatchSize];
+  }
+
+  /** Sets the patch edge length in depth pixels, clamped to [1, maxPatchSize]. */
+  public void setPatchSize(int patchSize) {
+    this.patchSize = Math.max(1, Math.min(maxPatchSize, patchSize));
+  }
+
+  public int getPatchSize() {
+    return patchSize;
+  }
+
+  /** Only every {@code step}-th pixel in each direction is read. Useful for very large patches. */
+  public void setSampleStep(int step) {
+    this.sampleStep = Math.max(1, step);
+  }
+
+  /**
+   * Fraction of samples dropped from each end before averaging in {@link Estimator#TRIMMED_MEAN}
+   * mode. Clamped to [0, 0.45].
+   */
+  public void setTrimFraction(float trimFraction) {
+    this.trimFraction = Math.max(0f, Math.min(0.45f, trimFraction));
+  }
+
+  public void setEstimator(Estimator estimator) {
+    this.estimator = estimator;
+  }
+
+  /** Sets the patch centre in normalized depth image coordinates, each in [0, 1]. */
+  public void setCenter(float u, float v) {
+    centerU = Math.max(0f, Math.min(1f, u));
+    centerV = Math.max(0f, Math.min(1f, v));
+  }
+
+  public float getCenterU() {
+    return centerU;
+  }
+
+  public float getCenterV() {
+    return centerV;
+  }
+
+  /** Number of non-zero samples that went into the last {@link #sample} result. */
+  public int getValidCount() {
+    return validCount;
+  }
+
+  /**
+   * Computes the robust depth of the patch.
+   *
+   * @param buffer DEPTH16 plane data, already set to the image byte order. Read with absolute
+   *     indexing, so the buffer position is left untouched.
+   * @param width image width in pixels.
+   * @param height image height in pixels.
+   * @param rowStride bytes between the start of consecutive rows.
+   * @param pixelStride bytes between consecutive pixels in a row.
+   * @return the depth in millimeters, or 0 if the patch holds no valid sample.
+   */
+  public int sample(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+    computePatchBounds(width, height, bounds);
+    int x0 = bounds[0];
+    int y0 = bounds[1];
+    int x1 = bounds[2];
+    int y1 = bounds[3];
+
+    int n = 0;
+    for (int y = y0; y <= y1; y += sampleStep) {
+      int rowOffset = y * rowStride;
+      for (int x = x0; x <= x1; x += sampleStep) {
+        // DEPTH16 is unsigned; a signed read turns far values negative.
+        int mm = buffer.getShort(rowOffset + x * pixelStride) & 0xFFFF;
+        if (mm != 0) {
+          scratch[n++] = mm;
+        }
+      }
+    }
+    validCount = n;
+    return reduce(n);
+  }
+
+  /**
+   * Writes the inclusive pixel bounds {x0, y0, x1, y1} of the current patch in an image of the
+   * given size, so that other per-pixel statistics can cover exactly the same region.
+   */
+  public void computePatchBounds(int width, int height, int[] out) {
+    int half = patchSize / 2;
+    int cx = Math.min(width - 1, (int) (centerU * width));
+    int cy = Math.min(height - 1, (int) (centerV * height));
+    out[0] = Math.max(0, cx - half);
+    out[1] = Math.max(0, cy - half);
+    out[2] = Math.min(width - 1, out[0] + patchSize - 1);
+    out[3] = Math.min(height - 1, out[1] + patchSize - 1);
+  }
+
+  private int reduce(int n) {
+    if (n == 0) {
+      return 0;
+    }
+    if (estimator == Estimator.MEDIAN) {
+      return select(scratch, 0, n - 1, n / 2);
+    }
+    int trim = (int) (n * trimFraction);
+    int lo = trim;
+    int hi = n - 1 - trim;
+    // After the two selections [lo, hi] holds exactly the samples that survive trimming.
+    select(scratch, 0, n - 1, lo);
+    select(scratch, lo, n - 1, hi);
+    long sum = 0;
+    for (int i = lo; i <= hi; i++) {
+      sum += scratch[i];
+    }
+    int count = hi - lo + 1;
+    return (int) ((sum + count / 2) / count);
+  }
+
+  /**
+   * In-place quickselect (Hoare partition). On return {@code a[k]} holds the k-th smallest value of
+   * {@code a[left..right]}, smaller values are to its left and larger ones to its right.
+   */
+  static int select(int[] a, int left, int right, int k) {
+    while (right > left) {
+      int pivot = a[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (a[i] < pivot) {
+          i++;
+        }
+        while (a[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = a[i];
+          a[i] = a[j];
+          a[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        break;
+      }
+    }
+    return a[k];
+  }
+}
@@ -21,16 +21,25 @@ import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
 import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
+import static android.opengl.GLES20.GL_VERSION;
 import static android.opengl.GLES20.glBindTexture;
+import static android.opengl.GLES20.glDeleteTextures;
 import static android.opengl.GLES20.glGenTextures;
+import static android.opengl.GLES20.glGetString;
+import static android.opengl.GLES20.glPixelStorei;
 import static android.opengl.GLES20.glTexImage2D;
 import static android.opengl.GLES20.glTexParameteri;
+import static android.opengl.GLES20.glTexSubImage2D;
 import static android.opengl.GLES30.GL_LINEAR;
 import static android.opengl.GLES30.GL_RG;
 import static android.opengl.GLES30.GL_RG8;
+import static android.opengl.GLES30.GL_UNPACK_ROW_LENGTH;
+import static android.opengl.GLES30.glTexStorage2D;
 
 import android.media.Image;
 
+import com.google.ar.core.CameraIntrinsics;
+import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
 import com.google.ar.core.exceptions.NotYetAvailableException;
 
@@ -40,24 +49,111 @@ import java.nio.ByteOrder;
 /** Handle RG8 GPU texture containing a DEPTH16 depth image. */
 public final class DepthTextureHandler {
 
+  private final int[] textureIds = new int[1];
   private int depthTextureId = -1;
   private int depthTextureWidth = -1;
   private int depthTextureHeight = -1;
 
+  // Size the texture storage was last allocated with. Storage is only (re)allocated when the depth
+  // resolution changes; every other update is a sub-image upload into the existing storage.
+  private int allocatedWidth = -1;
+  private int allocatedHeight = -1;
+  private boolean isGles3 = false;
+  // Set when the texture name or size changed since the last update().
+  private boolean textureChanged = false;
+
+  // Timestamp of the last depth image that was uploaded. ARCore produces depth at a lower rate
+  // than the camera, so most frames return the same image again.
+  private long lastDepthTimestamp = -1;
+
   private Image depthImage;
 
   private int depthValue;
 
+  // Robust distance estimate over a small patch under the screen centre. The sampler runs on the
+  // analysis worker thread, together with any heavier per-frame depth statistics.
+  private static final int MAX_ROI_PATCH_SIZE = 31;
+  private static final int ANALYSIS_QUEUE_CAPACITY = 2;
+  private final DepthRoiSampler roiSampler = new DepthRoiSampler(MAX_ROI_PATCH_SIZE);
+  private final DepthAnalysisWorker analysisWorker =
+      new DepthAnalysisWorker(ANALYSIS_QUEUE_CAPACITY, roiSampler);
+  private DepthAnalysisResult analysisResult = new DepthAnalysisResult();
+
+  // Smoothing and stability detection of the ROI distance, also run on the worker.
+  private static final int STABILITY_WINDOW_SIZE = 8;
+  private final TemporalDepthFilter temporalFilter = new TemporalDepthFilter(STABILITY_WINDOW_SIZE);
+
+  // Raw depth mode: analysis runs on the raw depth image and its confidence image instead of the
+  // smoothed depth, so frames with untrustworthy depth can be rejected. The texture used for
+  // occlusion and visualisation always comes from the smoothed depth.
+  private final DepthConfidenceEstimator confidenceEstimator =
+      new DepthConfidenceEstimator(roiSampler);
+  private boolean useRawDepth = false;
+  private long lastRawDepthTimestamp = -1;
+  private float minRoiConfidence = 0.5f;
+  private float minRoiConfidentFraction = 0.6f;
+
+  // Skin plane fit over a patch larger than the distance ROI, using the camera intrinsics.
+  private static final int PLANE_PATCH_SIZE = 48;
+  private static final int PLANE_PATCH_STEP = 2;
+  private final DepthRayTable rayTable = new DepthRayTable();
+  private final SkinPlaneFitter planeFitter =
+      new SkinPlaneFitter(rayTable, PLANE_PATCH_SIZE, PLANE_PATCH_STEP);
+  private final PointCloudBuilder pointCloudBuilder = new PointCloudBuilder(rayTable, roiSampler);
+
+  // Optional constant time region queries over the whole depth frame.
+  private final DepthPyramidBuilder pyramidBuilder = new DepthPyramidBuilder();
+
+  // Optional hole filling and edge-preserving smoothing, run on the worker before every other
+  // step. When enabled, smoothed depth images that went to the worker reach the texture through
+  // their refined copy instead of a direct upload.
+  private final DepthRefiner refiner = new DepthRefiner();
+  // Timestamp of the depth image currently in the texture, refined or not.
+  private long textureTimestamp = -1;
+
+  // Per-device bias correction, applied to every analysed depth sample.
+  private final DepthCalibration calibration = new DepthCalibration();
+  // Newest depth timestamp submitted before the correction was suspended for calibration.
+  private long calibrationStartTimestamp = Long.MIN_VALUE;
 
+  private final float[] focalLength = new float[2];
+  private final float[] principalPoint = new float[2];
+  private final int[] intrinsicsDimensions = new int[2];
+
+  // Screen centre in view coordinates and its mapping into the depth image, reused every frame.
+  private final float[] viewCenter = new float[] {0.5f, 0.5f};
+  private final float[] depthCenter = new float[2];
+  private boolean roiCenterValid = false;
+
+  public DepthTextureHandler() {
+    analysisWorker.setCalibration(calibration);
+    analysisWorker.setRefiner(refiner);
+    analysisWorker.addStage(temporalFilter);
+    analysisWorker.addStage(confidenceEstimator);
+    analysisWorker.addStage(planeFitter);
+    analysisWorker.addStage(pointCloudBuilder);
+    analysisWorker.addStage(pyramidBuilder);
+  }
 
   /**
    * Creates and initializes the depth texture. This method needs to be called on a
    * thread with a EGL context attached.
    */
   public void createOnGlThread() {
-    int[] textureId = new int[1];
-    glGenTextures(1, textureId, 0);
-    depthTextureId = textureId[0];
+    glGenTextures(1, textureIds, 0);
+    depthTextureId = textureIds[0];
+    initTextureParameters();
+
+    // Immutable storage is only available from ES 3.0 on.
+    String glVersion = glGetString(GL_VERSION);
+    isGles3 = glVersion != null && glVersion.startsWith("OpenGL ES 3");
+    allocatedWidth = -1;
+    allocatedHeight = -1;
+    lastDepthTimestamp = -1;
+    textureTimestamp = -1;
+  }
+
+  private void initTextureParameters() {
     glBindTexture(GL_TEXTURE_2D, depthTextureId);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
@@ -65,17 +161,138 @@ public final class DepthTextureHandler {
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
   }
 
+  /** Starts background depth analysis. Should be called from {@code Activity#onResume()}. */
+  public void onResume() {
+    analysisWorker.start();
+  }
+
+  /** Stops background depth analysis. Should be called from {@code Activity#onPause()}. */
+  public void onPause() {
+    analysisWorker.stop();
+  }
+
   /**
    * Updates the depth texture with the content from acquireDepthImage().
    * This method needs to be called on a thread with a EGL context attached.
+   *
+   * @return true if the texture was recreated or resized, so renderers holding {@link
+   *     #getDepthTexture()} or its size must be given the new values.
    */
-  public void update(final Frame frame) {
+  public boolean update(final Frame frame) {
+    // Checked every frame so that display geometry changes are never missed.
+    updateRoiCenter(frame);
     try {
       depthImage = frame.acquireDepthImage16Bits();
-      depthTextureWidth = depthImage.getWidth();
-      depthTextureHeight = depthImage.getHeight();
-      depthValue = getMillimetersDepth(depthImage,1,1);
-      glBindTexture(GL_TEXTURE_2D, depthTextureId);
+      try {
+        if (depthImage.getTimestamp() != lastDepthTimestamp) {
+          lastDepthTimestamp = depthImage.getTimestamp();
+          boolean submitted = !useRawDepth && roiCenterValid;
+          if (submitted) {
+            analysisWorker.submit(depthImage, null, depthCenter[0], depthCenter[1]);
+          }
+          // A refined copy of a submitted image is uploaded when the worker is done with it.
+          if (!submitted || !refiner.isEnabled()) {
+            textureTimestamp = lastDepthTimestamp;
+            depthTextureWidth = depthImage.getWidth();
+            depthTextureHeight = depthImage.getHeight();
+            Image.Plane plane = depthImage.getPlanes()[0];
+            uploadTexture(plane.getBuffer(), plane.getRowStride());
+          }
+        }
+      } finally {
+        depthImage.close();
+      }
+    } catch (NotYetAvailableException e) {
+      // This normally means that depth data is not available yet.
+    }
+
+    if (useRawDepth) {
+      submitRawDepth(frame);
+    }
+
+    // Pick up whatever the worker finished since the last frame.
+    analysisResult = analysisWorker.pollResult();
+    depthValue = analysisResult.getRoiDepthMm();
+
+    // Refined raw depth, recognisable by its confidence, is only used for analysis. Results older
+    // than the texture come from frames that were already uploaded directly.
+    ByteBuffer refinedDepth = analysisResult.getRefinedDepth();
+    if (refinedDepth != null
+        && !analysisResult.hasConfidence()
+        && analysisResult.getTimestamp() > textureTimestamp) {
+      textureTimestamp = analysisResult.getTimestamp();
+      depthTextureWidth = analysisResult.getRefinedWidth();
+      depthTextureHeight = analysisResult.getRefinedHeight();
+      uploadTexture(refinedDepth, depthTextureWidth * 2);
+    }
+
+    boolean changed = textureChanged;
+    textureChanged = false;
+    return changed;
+  }
+
+  /** Queues the newest raw depth image and its confidence for analysis. */
+  private void submitRawDepth(Frame frame) {
+    Image rawDepthImage = null;
+    Image confidenceImage = null;
+    try {
+      rawDepthImage = frame.acquireRawDepthImage16Bits();
+      if (rawDepthImage.getTimestamp() == lastRawDepthTimestamp || !roiCenterValid) {
+        return;
+      }
+      confidenceImage = frame.acquireRawDepthConfidenceImage();
+      lastRawDepthTimestamp = rawDepthImage.getTimestamp();
+      analysisWorker.submit(rawDepthImage, confidenceImage, depthCenter[0], depthCenter[1]);
+    } catch (NotYetAvailableException e) {
+      // Raw depth lags behind the smoothed depth right after the session starts.
+    } finally {
+      if (rawDepthImage != null) {
+        rawDepthImage.close();
+      }
+      if (confidenceImage != null) {
+        confidenceImage.close();
+      }
+    }
+  }
+
+  /** Uploads one DEPTH16 plane as RG8, allocating storage only when the size changed. */
+  private void uploadTexture(ByteBuffer data, int rowStride) {
+    glBindTexture(GL_TEXTURE_2D, depthTextureId);
+    if (depthTextureWidth != allocatedWidth || depthTextureHeight != allocatedHeight) {
+      allocateTextureStorage();
+    }
+    // Each RG8 texel is one 16-bit depth sample. Padded rows can only be skipped on ES 3.
+    boolean paddedRows = rowStride != depthTextureWidth * 2;
+    if (paddedRows && isGles3) {
+      glPixelStorei(GL_UNPACK_ROW_LENGTH, rowStride / 2);
+    }
+    glTexSubImage2D(
+        GL_TEXTURE_2D,
+        0,
+        0,
+        0,
+        depthTextureWidth,
+        depthTextureHeight,
+        GL_RG,
+        GL_UNSIGNED_BYTE,
+        data);
+    if (paddedRows && isGles3) {
+      glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+    }
+  }
+
+  private void allocateTextureStorage() {
+    if (isGles3) {
+      if (allocatedWidth != -1) {
+        // Immutable storage cannot be respecified, so a resize needs a new texture name. The caller
+        // of update() hands it to the renderers.
+        glDeleteTextures(1, textureIds, 0);
+        glGenTextures(1, textureIds, 0);
+        depthTextureId = textureIds[0];
+        initTextureParameters();
+      }
+      glTexStorage2D(GL_TEXTURE_2D, 1, GL_RG8, depthTextureWidth, depthTextureHeight);
+    } else {
       glTexImage2D(
           GL_TEXTURE_2D,
           0,
@@ -85,12 +302,87 @@ public final class DepthTextureHandler {
           0,
           GL_RG,
           GL_UNSIGNED_BYTE,
-          depthImage.getPlanes()[0].getBuffer());
-      depthImage.close();
+          null);
+    }
+    allocatedWidth = depthTextureWidth;
+    allocatedHeight = depthTextureHeight;
+    textureChanged = true;
+  }
 
-    } catch (NotYetAvailableException e) {
-      // This normally means that depth data is not available yet.
+  /**
+   * Maps the screen centre into normalized depth image coordinates. The depth image shares the
+   * orientation of the camera texture, so the mapping only changes with the display geometry.
+   * The camera intrinsics handed to the analysis worker are refreshed at the same time.
+   */
+  private void updateRoiCenter(Frame frame) {
+    if (roiCenterValid && !frame.hasDisplayGeometryChanged()) {
+      return;
     }
+    frame.transformCoordinates2d(
+        Coordinates2d.VIEW_NORMALIZED, viewCenter, Coordinates2d.TEXTURE_NORMALIZED, depthCenter);
+    // Negative values mean the screen centre falls in the cropped part of the depth image.
+    roiCenterValid = depthCenter[0] >= 0 && depthCenter[1] >= 0;
+
+    // The texture intrinsics belong to the same camera configuration, so refresh them together.
+    CameraIntrinsics intrinsics = frame.getCamera().getTextureIntrinsics();
+    intrinsics.getFocalLength(focalLength, 0);
+    intrinsics.getPrincipalPoint(principalPoint, 0);
+    intrinsics.getImageDimensions(intrinsicsDimensions, 0);
+    analysisWorker.setIntrinsics(
+        focalLength, principalPoint, intrinsicsDimensions[0], intrinsicsDimensions[1]);
+  }
+
+  /**
+   * Gives access to the ROI sampler so callers can tune the patch size and estimator. The sampler
+   * is used on the analysis thread, so configure it before {@link #onResume()}.
+   */
+  public DepthRoiSampler getRoiSampler() {
+    return roiSampler;
+  }
+
+  /**
+   * Gives access to the temporal filter behind {@link #getFilteredDepthValue()} and
+   * {@link #isDepthStable()}. Configure it before {@link #onResume()}.
+   */
+  public TemporalDepthFilter getTemporalFilter() {
+    return temporalFilter;
+  }
+
+  /**
+   * Switches analysis between the smoothed depth image and the raw depth plus confidence images.
+   * Raw depth requires a session configured with a depth mode that supports it.
+   */
+  public void setUseRawDepth(boolean useRawDepth) {
+    this.useRawDepth = useRawDepth;
+    lastRawDepthTimestamp = -1;
+  }
+
+  public DepthConfidenceEstimator getConfidenceEstimator() {
+    return confidenceEstimator;
+  }
+
+  /**
+   * Sets the ROI confidence required by {@link #isDepthConfident()}.
+   *
+   * @param minConfidence minimum mean ROI confidence, 0 to 1.
+   * @param minConfidentFraction minimum fraction of confident ROI pixels, 0 to 1.
+   */
+  public void setConfidenceThresholds(float minConfidence, float minConfidentFraction) {
+    minRoiConfidence = minConfidence;
+    minRoiConfidentFraction = minConfidentFraction;
+  }
+
+  /**
+   * Registers an extra analysis stage on the depth worker. Must be called before the first
+   * {@link #onResume()}.
+   */
+  public void addAnalysisStage(DepthAnalysisWorker.Stage stage) {
+    analysisWorker.addStage(stage);
+  }
+
+  /** Latest background analysis result. Only valid on the GL thread until the next update(). */
+  public DepthAnalysisResult getAnalysisResult() {
+    return analysisResult;
   }
 
   /** Obtain the depth in millimeters for depthImage at coordinates (x, y). */
@@ -106,7 +398,7 @@ public final class DepthTextureHandler {
      * */
     int byteIndex = x * plane.getPixelStride() + y * plane.getRowStride();
     ByteBuffer buffer = plane.getBuffer().order(ByteOrder.nativeOrder());    // the order of the bytes is in short value
-    return buffer.getShort(byteIndex);
+    return buffer.getShort(byteIndex) & 0xFFFF;
   }
   /*
     Byte index | Pixel value
@@ -155,6 +447,126 @@ public final class DepthTextureHandler {
 
   public int getDepthValue() {return depthValue;}
 
+  /** Smoothed distance under the screen centre in millimeters. */
+  public int getFilteredDepthValue() {
+    return analysisResult.getFilteredDepthMm();
+  }
+
+  /** Whether the distance under the screen centre has stopped changing. */
+  public boolean isDepthStable() {
+    return analysisResult.isDepthStable();
+  }
+
+  public SkinPlaneFitter getPlaneFitter() {
+    return planeFitter;
+  }
+
+  public PointCloudBuilder getPointCloudBuilder() {
+    return pointCloudBuilder;
+  }
+
+  /**
+   * Enables the camera-space point cloud and ROI area of every analysed frame, see {@link
+   * DepthAnalysisResult#getPoints()} and {@link DepthAnalysisResult#getRoiAreaMm2()}.
+   */
+  public void setPointCloudEnabled(boolean enabled) {
+    pointCloudBuilder.setEnabled(enabled);
+  }
+
+  /**
+   * Enables building a {@link DepthPyramid} per depth frame, so that several consumers can query
+   * arbitrary regions in constant time through {@link #getDepthPyramid()}.
+   */
+  public void setPyramidEnabled(boolean enabled) {
+    pyramidBuilder.setEnabled(enabled);
+  }
+
+  /**
+   * Enables hole filling and edge-preserving smoothing of the analysed depth. The ROI distance,
+   * plane fit, point cloud and pyramid then use the refined depth. So does the depth texture, one
+   * analysis frame behind the newest depth image, whenever the smoothed depth is being analysed.
+   */
+  public void setRefinementEnabled(boolean enabled) {
+    refiner.setEnabled(enabled);
+  }
+
+  public DepthRefiner getRefiner() {
+    return refiner;
+  }
+
+  public DepthCalibration getDepthCalibration() {
+    return calibration;
+  }
+
+  /**
+   * Starts recording a new depth calibration. The current correction is suspended so that samples
+   * are taken on uncorrected depth, and the temporal filter restarts after the depth frames that
+   * were already submitted, which may still be corrected.
+   */
+  public void startDepthCalibration() {
+    calibration.clearSamples();
+    calibration.setApplied(false);
+    calibrationStartTimestamp = Math.max(lastDepthTimestamp, lastRawDepthTimestamp);
+    temporalFilter.restartAfter(calibrationStartTimestamp);
+  }
+
+  /**
+   * Records the current distance reading against a target at {@code trueMm}. Hold the phone still
+   * on a flat target; readings are only taken once the distance is stable.
+   *
+   * @return false if the reading was not stable yet and nothing was recorded.
+   */
+  public boolean recordDepthCalibrationSample(int trueMm) {
+    if (analysisResult.getTimestamp() <= calibrationStartTimestamp
+        || !analysisResult.isDepthStable()) {
+      return false;
+    }
+    return calibration.addSample(analysisResult.getFilteredDepthMm(), trueMm);
+  }
+
+  /**
+   * Fits the correction to the recorded samples and applies it again. Persist it with {@link
+   * DepthCalibrationStore#save}.
+   *
+   * @return false if no sample was recorded; the previous correction is then kept.
+   */
+  public boolean finishDepthCalibration() {
+    boolean fitted = calibration.fit();
+    calibration.setApplied(true);
+    return fitted;
+  }
+
+  /** Drops the samples recorded so far and applies the previous correction again. */
+  public void cancelDepthCalibration() {
+    calibration.clearSamples();
+    calibration.setApplied(true);
+  }
+
+  /** Region queries over the latest analysed frame, or null if the pyramid is disabled. */
+  public DepthPyramid getDepthPyramid() {
+    return analysisResult.getPyramid();
+  }
+
+  /** Whether the latest depth frame produced a skin plane, see {@link #getSkinAngle()}. */
+  public boolean hasSkinPlane() {
+    return analysisResult.isPlaneValid();
+  }
+
+  /** Angle in degrees between the camera axis and the skin normal under the screen centre. */
+  public float getSkinAngle() {
+    return analysisResult.getPlaneAngleDeg();
+  }
+
+  /**
+   * Whether the latest analysed depth is trustworthy enough to act on. Always true when no
+   * confidence information is available, i.e. outside raw depth mode.
+   */
+  public boolean isDepthConfident() {
+    return !analysisResult.hasConfidence()
+        || (analysisResult.getRoiConfidence() >= minRoiConfidence
+            && analysisResult.getRoiConfidentFraction() >= minRoiConfidentFraction);
+  }
+
   //public Image getDepthImage() {return depthImage;}
 
 
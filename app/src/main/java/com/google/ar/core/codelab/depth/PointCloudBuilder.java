@@ -0,0 +1,96 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts each depth frame into a camera-space point cloud and measures the ROI area.
+ *
+ * <p>Every valid depth pixel (optionally subsampled) becomes an (X, Y, Z) triple in millimeters
+ * (x right, y down, z forward), written into the result's reusable direct buffer via the shared
+ * {@link DepthRayTable}, so there is no per-pixel trigonometry or division. The ROI area is the sum
+ * of the per-pixel footprints over the ROI patch, corrected for the skin tilt when a plane was fit.
+ *
+ * <p>Off by default; while disabled the result carries no points and no area.
+ */
+public final class PointCloudBuilder implements DepthAnalysisWorker.Stage {
+  private final DepthRayTable rayTable;
+  private final DepthRoiSampler roiSampler;
+  private final int[] bounds = new int[4];
+  private volatile boolean enabled = false;
+  private int step = 1;
+
+  /**
+   * @param rayTable ray table shared with other stages on the same worker.
+   * @param roiSampler sampler whose patch defines the ROI used for the area measurement.
+   */
+  public PointCloudBuilder(DepthRayTable rayTable, DepthRoiSampler roiSampler) {
+    this.rayTable = rayTable;
+    this.roiSampler = roiSampler;
+  }
+
+  /** Turns building on or off. Safe to call from any thread; applies from the next frame. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Only every {@code step}-th pixel in each direction becomes a point. */
+  public void setStep(int step) {
+    this.step = Math.max(1, step);
+  }
+
+  @Override
+  public void process(DepthFrame frame, DepthAnalysisResult result) {
+    result.pointCount = 0;
+    result.roiAreaMm2 = 0f;
+    if (!enabled || !rayTable.update(frame)) {
+      return;
+    }
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    ByteBuffer depth = frame.getDepth();
+    int rowStride = frame.getRowStride();
+
+    int maxPoints = ((width + step - 1) / step) * ((height + step - 1) / step);
+    FloatBuffer points = result.ensurePointCapacity(maxPoints);
+    int n = 0;
+    int index = 0;
+    for (int y = 0; y < height; y += step) {
+      float rayY = rayTable.rayY(y);
+      int rowOffset = y * rowStride;
+      for (int x = 0; x < width; x += step) {
+        int mm = depth.getShort(rowOffset + x * 2) & 0xFFFF;
+        if (mm == 0) {
+          continue;
+        }
+        points.put(index++, rayTable.rayX(x) * mm);
+        points.put(index++, rayY * mm);
+        points.put(index++, mm);
+        n++;
+      }
+    }
+    points.limit(index);
+    result.pointCount = n;
+
+    roiSampler.computePatchBounds(width, height, bounds);
+    float area = 0f;
+    for (int y = bounds[1]; y <= bounds[3]; y++) {
+      int rowOffset = y * rowStride;
+      for (int x = bounds[0]; x <= bounds[2]; x++) {
+        int mm = depth.getShort(rowOffset + x * 2) & 0xFFFF;
+        if (mm != 0) {
+          area += rayTable.pixelFootprint(mm);
+        }
+      }
+    }
+    if (result.planeValid) {
+      // A tilted surface covers more area per pixel than one facing the camera.
+      area /= (float) Math.cos(Math.toRadians(result.planeAngleDeg));
+    }
+    result.roiAreaMm2 = area;
+  }
+}
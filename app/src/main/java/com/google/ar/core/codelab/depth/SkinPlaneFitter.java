@@ -0,0 +1,224 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fits a plane to the skin under the screen centre and reports its tilt relative to the camera.
+ *
+ * <p>The central depth patch is unprojected into camera space (x right, y down, z forward, in mm)
+ * through a {@link DepthRayTable} built from the frame intrinsics. RANSAC over random point
+ * triples picks the dominant plane, rejecting sleeves, fingers and depth speckle, and a
+ * least-squares fit of {@code z = a x + b y + c} over the inliers refines it. The angle between
+ * the camera axis and the plane normal is 0 when the phone looks straight down onto the skin,
+ * regardless of how the arm is oriented relative to gravity.
+ *
+ * <p>Runs as a {@link DepthAnalysisWorker.Stage} on preallocated arrays and does not allocate.
+ */
+public final class SkinPlaneFitter implements DepthAnalysisWorker.Stage {
+  private static final float RADIANS_TO_DEGREES = (float) (180.0 / Math.PI);
+
+  private final DepthRayTable rayTable;
+  private final int patchSize;
+  private final int step;
+  private final float[] xs;
+  private final float[] ys;
+  private final float[] zs;
+  private final boolean[] inliers;
+
+  private int ransacIterations = 40;
+  private float inlierThresholdMm = 5f;
+  private float minInlierRatio = 0.5f;
+  private int minInliers = 30;
+
+  // xorshift32 state; deterministic so that results are reproducible frame to frame.
+  private int randomState = 0x9E3779B9;
+
+  /**
+   * @param rayTable ray table shared with other stages on the same worker.
+   * @param patchSize edge length of the fitted patch in depth pixels.
+   * @param step only every {@code step}-th pixel in each direction is used.
+   */
+  public SkinPlaneFitter(DepthRayTable rayTable, int patchSize, int step) {
+    this.rayTable = rayTable;
+    this.patchSize = patchSize;
+    this.step = Math.max(1, step);
+    int perAxis = (patchSize + this.step - 1) / this.step;
+    int capacity = perAxis * perAxis;
+    xs = new float[capacity];
+    ys = new float[capacity];
+    zs = new float[capacity];
+    inliers = new boolean[capacity];
+  }
+
+  /**
+   * Sets the RANSAC parameters.
+   *
+   * @param iterations number of random plane hypotheses per frame.
+   * @param inlierThresholdMm maximum point to plane distance of an inlier.
+   * @param minInlierRatio fraction of points that must be inliers for the fit to be valid.
+   */
+  public void setRansacParameters(int iterations, float inlierThresholdMm, float minInlierRatio) {
+    ransacIterations = Math.max(1, iterations);
+    this.inlierThresholdMm = inlierThresholdMm;
+    this.minInlierRatio = minInlierRatio;
+  }
+
+  @Override
+  public void process(DepthFrame frame, DepthAnalysisResult result) {
+    result.planeValid = false;
+    if (!rayTable.update(frame)) {
+      return;
+    }
+    int count = unprojectPatch(frame);
+    if (count < minInliers) {
+      return;
+    }
+    int inlierCount = findInliers(count);
+    if (inlierCount < minInliers || inlierCount < minInlierRatio * count) {
+      return;
+    }
+    fitInliers(count, inlierCount, result);
+  }
+
+  /** Unprojects the valid pixels of the centre patch into {@link #xs}, {@link #ys}, {@link #zs}. */
+  private int unprojectPatch(DepthFrame frame) {
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    int half = patchSize / 2;
+    int cx = Math.min(width - 1, (int) (frame.getRoiCenterU() * width));
+    int cy = Math.min(height - 1, (int) (frame.getRoiCenterV() * height));
+    int x0 = Math.max(0, cx - half);
+    int y0 = Math.max(0, cy - half);
+    int x1 = Math.min(width - 1, x0 + patchSize - 1);
+    int y1 = Math.min(height - 1, y0 + patchSize - 1);
+
+    ByteBuffer depth = frame.getDepth();
+    int rowStride = frame.getRowStride();
+
+    int n = 0;
+    for (int y = y0; y <= y1; y += step) {
+      float rayY = rayTable.rayY(y);
+      for (int x = x0; x <= x1; x += step) {
+        int mm = depth.getShort(y * rowStride + x * 2) & 0xFFFF;
+        if (mm == 0) {
+          continue;
+        }
+        zs[n] = mm;
+        xs[n] = rayTable.rayX(x) * mm;
+        ys[n] = rayY * mm;
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /** Runs RANSAC and marks the inliers of the best hypothesis. Returns the inlier count. */
+  private int findInliers(int count) {
+    float bestNx = 0;
+    float bestNy = 0;
+    float bestNz = 0;
+    float bestD = 0;
+    int bestCount = 0;
+    for (int iteration = 0; iteration < ransacIterations; iteration++) {
+      int i = nextIndex(count);
+      int j = nextIndex(count);
+      int k = nextIndex(count);
+      float ux = xs[j] - xs[i];
+      float uy = ys[j] - ys[i];
+      float uz = zs[j] - zs[i];
+      float vx = xs[k] - xs[i];
+      float vy = ys[k] - ys[i];
+      float vz = zs[k] - zs[i];
+      float nx = uy * vz - uz * vy;
+      float ny = uz * vx - ux * vz;
+      float nz = ux * vy - uy * vx;
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      if (length < 1e-6f) {
+        // Degenerate (collinear or repeated) sample.
+        continue;
+      }
+      nx /= length;
+      ny /= length;
+      nz /= length;
+      float d = -(nx * xs[i] + ny * ys[i] + nz * zs[i]);
+      int hypothesisCount = 0;
+      for (int p = 0; p < count; p++) {
+        if (Math.abs(nx * xs[p] + ny * ys[p] + nz * zs[p] + d) <= inlierThresholdMm) {
+          hypothesisCount++;
+        }
+      }
+      if (hypothesisCount > bestCount) {
+        bestCount = hypothesisCount;
+        bestNx = nx;
+        bestNy = ny;
+        bestNz = nz;
+        bestD = d;
+      }
+    }
+    for (int p = 0; p < count; p++) {
+      inliers[p] =
+          Math.abs(bestNx * xs[p] + bestNy * ys[p] + bestNz * zs[p] + bestD) <= inlierThresholdMm;
+    }
+    return bestCount;
+  }
+
+  /** Least-squares fit of z = a x + b y + c over the inliers, on mean-centred coordinates. */
+  private void fitInliers(int count, int inlierCount, DepthAnalysisResult result) {
+    float meanX = 0;
+    float meanY = 0;
+    float meanZ = 0;
+    for (int p = 0; p < count; p++) {
+      if (inliers[p]) {
+        meanX += xs[p];
+        meanY += ys[p];
+        meanZ += zs[p];
+      }
+    }
+    meanX /= inlierCount;
+    meanY /= inlierCount;
+    meanZ /= inlierCount;
+
+    float sxx = 0;
+    float sxy = 0;
+    float syy = 0;
+    float sxz = 0;
+    float syz = 0;
+    for (int p = 0; p < count; p++) {
+      if (!inliers[p]) {
+        continue;
+      }
+      float dx = xs[p] - meanX;
+      float dy = ys[p] - meanY;
+      float dz = zs[p] - meanZ;
+      sxx += dx * dx;
+      sxy += dx * dy;
+      syy += dy * dy;
+      sxz += dx * dz;
+      syz += dy * dz;
+    }
+    float det = sxx * syy - sxy * sxy;
+    if (Math.abs(det) < 1e-6f) {
+      return;
+    }
+    float a = (sxz * syy - syz * sxy) / det;
+    float b = (syz * sxx - sxz * sxy) / det;
+
+    // Normal of z = a x + b y + c is (a, b, -1); its angle to the optical axis (0, 0, 1):
+    float normalLength = (float) Math.sqrt(a * a + b * b + 1f);
+    result.planeValid = true;
+    result.planeAngleDeg = (float) Math.acos(1f / normalLength) * RADIANS_TO_DEGREES;
+    result.planeTiltXDeg = (float) Math.atan(a) * RADIANS_TO_DEGREES;
+    result.planeTiltYDeg = (float) Math.atan(b) * RADIANS_TO_DEGREES;
+    result.planeDistanceMm = meanZ;
+    result.planeInlierRatio = (float) inlierCount / count;
+  }
+
+  private int nextIndex(int bound) {
+    int x = randomState;
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    randomState = x;
+    return (x >>> 1) % bound;
+  }
+}
@@ -0,0 +1,160 @@
+package com.google.ar.core.codelab.depth;
+
+/**
+ * Smooths the ROI depth over time and detects when it has settled.
+ *
+ * <p>Every valid ROI depth is pushed into a fixed-size ring buffer and fed to either an
+ * exponential moving average or a constant-position 1D Kalman filter. The reading is reported
+ * stable once the ring buffer is full and the standard deviation over it stays below a threshold.
+ * Runs as a {@link DepthAnalysisWorker.Stage}, so all state apart from restart requests lives on
+ * the worker thread, and nothing is allocated per frame.
+ */
+public final class TemporalDepthFilter implements DepthAnalysisWorker.Stage {
+
+  /** Smoothing applied to the ROI depth. */
+  public enum Mode {
+    EMA,
+    KALMAN
+  }
+
+  private static final float NANOS_PER_SECOND = 1e9f;
+
+  private final float[] window;
+  private int windowCount;
+  private int windowHead;
+
+  private Mode mode = Mode.KALMAN;
+  private float emaAlpha = 0.3f;
+  // Kalman tuning: process noise in mm^2 per second, measurement noise in mm^2.
+  private float processNoise = 400f;
+  private float measurementNoise = 100f;
+  private float stableStdDevMm = 6f;
+  // Readings further than this from the estimate restart the filter instead of dragging it.
+  private float resetJumpMm = 250f;
+
+  private boolean hasEstimate;
+  private float estimate;
+  private float estimateVariance;
+  private long lastTimestamp;
+  // Frames up to this timestamp are dropped, see restartAfter(). Written from other threads.
+  private volatile long restartTimestamp = Long.MIN_VALUE;
+  private long handledRestartTimestamp = Long.MIN_VALUE;
+
+  /** @param windowSize number of recent readings used for the stability check. */
+  public TemporalDepthFilter(int windowSize) {
+    if (windowSize < 2) {
+      throw new IllegalArgumentException("windowSize must be at least 2: " + windowSize);
+    }
+    window = new float[windowSize];
+  }
+
+  public void setMode(Mode mode) {
+    this.mode = mode;
+  }
+
+  /** Weight of the newest reading in {@link Mode#EMA}, in (0, 1]. */
+  public void setEmaAlpha(float alpha) {
+    emaAlpha = Math.max(0.01f, Math.min(1f, alpha));
+  }
+
+  /**
+   * Sets the {@link Mode#KALMAN} tuning.
+   *
+   * @param processNoise how fast the true distance is expected to drift, in mm^2 per second.
+   * @param measurementNoise variance of a single ROI reading, in mm^2.
+   */
+  public void setKalmanNoise(float processNoise, float measurementNoise) {
+    this.processNoise = Math.max(0f, processNoise);
+    this.measurementNoise = Math.max(1e-3f, measurementNoise);
+  }
+
+  /** Maximum standard deviation over the window, in mm, for the reading to count as stable. */
+  public void setStableStdDevMm(float stdDevMm) {
+    stableStdDevMm = stdDevMm;
+  }
+
+  /** Jumps larger than this restart the filter, e.g. when the phone is pointed elsewhere. */
+  public void setResetJumpMm(float jumpMm) {
+    resetJumpMm = jumpMm;
+  }
+
+  /** Forgets all history. */
+  public void reset() {
+    hasEstimate = false;
+    windowCount = 0;
+    windowHead = 0;
+  }
+
+  /**
+   * Drops the history and every frame up to {@code timestampNs}, so that the estimate and the
+   * stability check only cover later frames. Safe to call from any thread.
+   */
+  public void restartAfter(long timestampNs) {
+    restartTimestamp = timestampNs;
+  }
+
+  @Override
+  public void process(DepthFrame frame, DepthAnalysisResult result) {
+    int depthMm = result.roiDepthMm;
+    long restart = restartTimestamp;
+    boolean beforeRestart = frame.getTimestamp() <= restart;
+    if (beforeRestart || restart != handledRestartTimestamp) {
+      handledRestartTimestamp = restart;
+      reset();
+    }
+    if (depthMm > 0 && !beforeRestart) {
+      update(depthMm, frame.getTimestamp());
+    } else {
+      // A frame without valid depth, or from before a restart, breaks the run of steady readings.
+      windowCount = 0;
+      windowHead = 0;
+    }
+    result.filteredDepthMm = hasEstimate ? Math.round(estimate) : 0;
+    result.depthStdDevMm = windowStdDev();
+    result.depthStable = windowCount == window.length && result.depthStdDevMm <= stableStdDevMm;
+  }
+
+  /** Feeds one reading. {@code timestampNs} must be monotonic. */
+  void update(float depthMm, long timestampNs) {
+    if (!hasEstimate || Math.abs(depthMm - estimate) > resetJumpMm) {
+      hasEstimate = true;
+      estimate = depthMm;
+      estimateVariance = measurementNoise;
+      windowCount = 0;
+      windowHead = 0;
+    } else if (mode == Mode.EMA) {
+      estimate += emaAlpha * (depthMm - estimate);
+    } else {
+      float dt = Math.max(0f, (timestampNs - lastTimestamp) / NANOS_PER_SECOND);
+      estimateVariance += processNoise * dt;
+      float gain = estimateVariance / (estimateVariance + measurementNoise);
+      estimate += gain * (depthMm - estimate);
+      estimateVariance *= (1f - gain);
+    }
+    lastTimestamp = timestampNs;
+
+    window[windowHead] = depthMm;
+    windowHead = (windowHead + 1) % window.length;
+    if (windowCount < window.length) {
+      windowCount++;
+    }
+  }
+
+  private float windowStdDev() {
+    if (windowCount < 2) {
+      return Float.POSITIVE_INFINITY;
+    }
+    // Two-pass variance; the window is small so this is cheaper than it sounds.
+    float mean = 0f;
+    for (int i = 0; i < windowCount; i++) {
+      mean += window[i];
+    }
+    mean /= windowCount;
+    float sumSq = 0f;
+    for (int i = 0; i < windowCount; i++) {
+      float d = window[i] - mean;
+      sumSq += d * d;
+    }
+    return (float) Math.sqrt(sumSq / (windowCount - 1));
+  }
+}
@@ -3,6 +3,7 @@ package com.google.ar.core.codelab.orientation;
 import static android.content.Context.WINDOW_SERVICE;
 
 import android.content.Context;
+import android.graphics.Point;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -12,32 +13,146 @@ import android.view.WindowManager;
 
 import com.google.ar.core.codelab.common.rendering.CenterOrientationRenderer;
 
+/**
+ * Tracks the pitch and roll of the phone from the rotation vector sensor.
+ *
+ * <p>The sensor callback works on preallocated matrices and does not allocate. Pitch, roll and the
+ * event timestamp are published together under a sequence counter, so {@link #getSnapshot} returns
+ * a consistent reading on any thread without locking.
+ *
+ * <p>In fusion mode the handler uses the game rotation vector (gyroscope and accelerometer, no
+ * magnetometer) at a configurable rate with optional batching, smooths the attitude with a
+ * quaternion low-pass filter and reports sub-degree angles plus the gyroscope angular velocity.
+ * Otherwise it keeps the original behaviour: rotation vector at the normal rate, whole degrees.
+ */
 public class OrientationHandler {
 
+    /** Pitch and roll in degrees at one sensor timestamp. Reused by the caller. */
+    public static final class Snapshot {
+        private float roll;
+        private float pitch;
+        private float angularVelocity;
+        private long timestampNs;
+
+        /** Roll in degrees; whole degrees unless fusion is enabled. */
+        public float getRoll() {
+            return roll;
+        }
+
+        /** Pitch in degrees; whole degrees unless fusion is enabled. */
+        public float getPitch() {
+            return pitch;
+        }
+
+        /** Rotation speed of the phone in degrees per second, or 0 without fusion. */
+        public float getAngularVelocity() {
+            return angularVelocity;
+        }
+
+        /** Sensor event time in nanoseconds, or 0 before the first event. */
+        public long getTimestampNs() {
+            return timestampNs;
+        }
+    }
+
+    private static final float NANOS_PER_SECOND = 1e9f;
+    // Gaps longer than this restart the low-pass filter instead of blending across them.
+    private static final float MAX_FILTER_GAP_SECONDS = 0.5f;
+
     private final SensorManager sensorManager;
     private final Sensor rotationVectorSensor;
+    private final Sensor gameRotationVectorSensor;
+    private final Sensor gyroscopeSensor;
 
-    //private SensorEventListener rvListener;
-    public float degree;
-    public float degree2;
+    // Fusion settings, applied on the next onResume().
+    private boolean fusionEnabled = false;
+    private int samplingPeriodUs = 10_000;
+    private int maxReportLatencyUs = 0;
+    private float filterTimeConstantSeconds = 0.08f;
+
+    // Published state. The sequence number is odd while the sensor thread is writing; readers
+    // retry until they see the same even number before and after reading the values.
+    private volatile int sequence;
+    private volatile float degree;
+    private volatile float degree2;
+    private volatile float angularVelocity;
+    private volatile long timestampNs;
+
+    // Scratch space for the sensor thread.
+    private final float[] rotationMatrix = new float[16];
+    private final float[] remappedRotationMatrix = new float[16];
+    private final float[] orientations = new float[3];
+
+    // Fusion filter state, as {w, x, y, z}, and the rotation vector {x, y, z, w} built from it.
+    private final float[] sampleQuaternion = new float[4];
+    private final float[] filteredQuaternion = new float[4];
+    private final float[] filteredRotationVector = new float[4];
+    private long lastFusionTimestampNs;
 
     // System display. Need this for determining rotation.
     private final Display mDisplay;
+    // Display size, refreshed in onResume() instead of on every sensor event.
+    private final Point displaySize = new Point();
 
     private CenterOrientationRenderer centerOrientationRenderer;
     public OrientationHandler(Context context) {
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         rotationVectorSensor =
                 sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        gameRotationVectorSensor =
+                sensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        gyroscopeSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
 
         // Get the display from the window manager (for rotation).
         WindowManager windowmanager = (WindowManager) context.getSystemService(WINDOW_SERVICE);
         mDisplay = windowmanager.getDefaultDisplay();
     }
 
+    /**
+     * Switches between fusion mode and the original rotation vector mode. Takes effect on the next
+     * {@link #onResume()}.
+     */
+    public void setFusionEnabled(boolean enabled) {
+        fusionEnabled = enabled;
+    }
+
+    /**
+     * Sets the fusion mode sensor rate and batching. Takes effect on the next {@link #onResume()}.
+     *
+     * @param samplingPeriodUs requested time between sensor events in microseconds.
+     * @param maxReportLatencyUs how long events may be batched in the sensor hub before delivery,
+     *     0 for no batching. Batching saves power at the cost of delivery latency.
+     */
+    public void setSamplingRate(int samplingPeriodUs, int maxReportLatencyUs) {
+        this.samplingPeriodUs = samplingPeriodUs;
+        this.maxReportLatencyUs = maxReportLatencyUs;
+    }
+
+    /**
+     * Time constant of the fusion mode low-pass filter in seconds. Larger values are smoother but
+     * lag more; 0 disables the filter.
+     */
+    public void setFilterTimeConstant(float seconds) {
+        filterTimeConstantSeconds = Math.max(0f, seconds);
+    }
+
     public void onResume() {
-        sensorManager.registerListener(rvListener,
-                rotationVectorSensor, SensorManager.SENSOR_DELAY_NORMAL);
+        mDisplay.getSize(displaySize);
+        lastFusionTimestampNs = 0;
+        if (fusionEnabled) {
+            // Fall back to the rotation vector on devices without a game rotation vector.
+            Sensor attitudeSensor =
+                    gameRotationVectorSensor != null ? gameRotationVectorSensor : rotationVectorSensor;
+            sensorManager.registerListener(rvListener,
+                    attitudeSensor, samplingPeriodUs, maxReportLatencyUs);
+            if (gyroscopeSensor != null) {
+                sensorManager.registerListener(rvListener,
+                        gyroscopeSensor, samplingPeriodUs, maxReportLatencyUs);
+            }
+        } else {
+            sensorManager.registerListener(rvListener,
+                    rotationVectorSensor, SensorManager.SENSOR_DELAY_NORMAL);
+        }
     }
     public void onPause() {
         sensorManager.unregisterListener(rvListener);
@@ -47,47 +162,127 @@ public class OrientationHandler {
         this.centerOrientationRenderer = renderer;
     }
 
-    public SensorEventListener rvListener = new SensorEventListener() {
+    private final SensorEventListener rvListener = new SensorEventListener() {
         @Override
         public void onSensorChanged (SensorEvent event){
-            if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
-                float[] rotationMatrix = new float[16];
+            int type = event.sensor.getType();
+            if (type == Sensor.TYPE_GYROSCOPE) {
+                float x = event.values[0];
+                float y = event.values[1];
+                float z = event.values[2];
+                angularVelocity = (float) Math.toDegrees(Math.sqrt(x * x + y * y + z * z));
+                return;
+            }
+            if (type != Sensor.TYPE_ROTATION_VECTOR && type != Sensor.TYPE_GAME_ROTATION_VECTOR) {
+                return;
+            }
+            float pitch;
+            float roll;
+            if (fusionEnabled) {
+                filterAttitude(event);
+                SensorManager.getRotationMatrixFromVector(rotationMatrix, filteredRotationVector);
+                computeOrientation();
+                pitch = (float) Math.toDegrees(orientations[1]);
+                roll = (float) Math.toDegrees(orientations[2]);
+            } else {
                 SensorManager.getRotationMatrixFromVector(
                         rotationMatrix, event.values);
-
-                // Remap coordinate system (fix here)
-                float[] remappedRotationMatrix = new float[16];
-
-                SensorManager.remapCoordinateSystem(rotationMatrix,
-                        SensorManager.AXIS_X,
-                        SensorManager.AXIS_Y,
-                        remappedRotationMatrix);
-                // Convert to orientations
-                float[] orientations = new float[3];
-                SensorManager.getOrientation(remappedRotationMatrix, orientations);
-
+                computeOrientation();
                 //Pitch and roll orientation values
-                orientations[1] = (float) (Math.toDegrees(orientations[1]));
-                orientations[2] = (float) (Math.toDegrees(orientations[2]));
-                degree2 = Math.round(orientations[1]);
-                degree = Math.round(orientations[2]);
-
-                // Update circle's position based on orientation values
-                if (centerOrientationRenderer != null) {
-                    // Adjust the offset
-                    int x = mDisplay.getWidth() / 2 + (int) (degree);
-                    int y = mDisplay.getHeight() / 2 + (int) (degree2);
-                    //update the new circle position
-                    centerOrientationRenderer.updateCirclePosition(x, y);
-                }
+                pitch = Math.round(Math.toDegrees(orientations[1]));
+                roll = Math.round(Math.toDegrees(orientations[2]));
+            }
+            publish(roll, pitch, event.timestamp);
+
+            // Update circle's position based on orientation values
+            if (centerOrientationRenderer != null) {
+                // Adjust the offset
+                int x = displaySize.x / 2 + (int) (roll);
+                int y = displaySize.y / 2 + (int) (pitch);
+                //update the new circle position
+                centerOrientationRenderer.updateCirclePosition(x, y);
             }
         }
         @Override
         public void onAccuracyChanged (Sensor sensor,int i){
         }
     };
+
+    private void computeOrientation() {
+        // Remap coordinate system (fix here)
+        SensorManager.remapCoordinateSystem(rotationMatrix,
+                SensorManager.AXIS_X,
+                SensorManager.AXIS_Y,
+                remappedRotationMatrix);
+        // Convert to orientations
+        SensorManager.getOrientation(remappedRotationMatrix, orientations);
+    }
+
+    /**
+     * Blends the attitude of {@code event} into the filtered quaternion with a normalized linear
+     * interpolation whose weight follows from the event interval and the filter time constant.
+     */
+    private void filterAttitude(SensorEvent event) {
+        SensorManager.getQuaternionFromVector(sampleQuaternion, event.values);
+        float[] q = filteredQuaternion;
+        float dt = (event.timestamp - lastFusionTimestampNs) / NANOS_PER_SECOND;
+        if (lastFusionTimestampNs == 0 || dt <= 0f || dt > MAX_FILTER_GAP_SECONDS
+                || filterTimeConstantSeconds == 0f) {
+            System.arraycopy(sampleQuaternion, 0, q, 0, 4);
+        } else {
+            float alpha = 1f - (float) Math.exp(-dt / filterTimeConstantSeconds);
+            // q and -q are the same rotation; blend towards the closer one.
+            float dot = q[0] * sampleQuaternion[0] + q[1] * sampleQuaternion[1]
+                    + q[2] * sampleQuaternion[2] + q[3] * sampleQuaternion[3];
+            float sign = dot < 0f ? -1f : 1f;
+            float norm = 0f;
+            for (int i = 0; i < 4; i++) {
+                q[i] += alpha * (sign * sampleQuaternion[i] - q[i]);
+                norm += q[i] * q[i];
+            }
+            float invNorm = 1f / (float) Math.sqrt(norm);
+            for (int i = 0; i < 4; i++) {
+                q[i] *= invNorm;
+            }
+        }
+        lastFusionTimestampNs = event.timestamp;
+        filteredRotationVector[0] = q[1];
+        filteredRotationVector[1] = q[2];
+        filteredRotationVector[2] = q[3];
+        filteredRotationVector[3] = q[0];
+    }
+
+    private void publish(float roll, float pitch, long timestamp) {
+        int next = sequence + 1;
+        sequence = next;
+        degree = roll;
+        degree2 = pitch;
+        timestampNs = timestamp;
+        sequence = next + 1;
+    }
+
+    /** Copies the latest pitch, roll and timestamp into {@code out} as one consistent reading. */
+    public void getSnapshot(Snapshot out) {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            out.roll = degree;
+            out.pitch = degree2;
+            out.timestampNs = timestampNs;
+            if (sequence == before) {
+                out.angularVelocity = angularVelocity;
+                return;
+            }
+        }
+    }
+
+    /** Latest roll in degrees. Use {@link #getSnapshot} when reading roll and pitch together. */
     public float getdegree() {return degree;}
 
+    /** Latest pitch in degrees. Use {@link #getSnapshot} when reading roll and pitch together. */
     public float getDegree2() {return degree2;}
 
 }
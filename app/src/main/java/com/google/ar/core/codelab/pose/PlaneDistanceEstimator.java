@@ -0,0 +1,175 @@
+package com.google.ar.core.codelab.pose;
+
+import com.google.ar.core.Camera;
+import com.google.ar.core.Frame;
+import com.google.ar.core.HitResult;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.Trackable;
+import com.google.ar.core.TrackingState;
+
+import java.util.List;
+
+/**
+ * Distance and tilt of the camera relative to a tracked ARCore plane, for devices without the
+ * depth API.
+ *
+ * <p>The target plane is picked with a hit test through the screen centre and kept until it stops
+ * tracking or is merged into another plane. Its centre point and normal are cached and refreshed a
+ * few times per second, since plane poses only move when ARCore refines them. Each frame then reads
+ * the camera position and axes from the view matrix, so the per-frame path does not allocate:
+ * distance is the camera's offset along the plane normal and tilt is the angle between the plane
+ * normal and the camera axis. Must be used on the GL thread.
+ */
+public final class PlaneDistanceEstimator {
+  private static final float RADIANS_TO_DEGREES = (float) (180.0 / Math.PI);
+  private static final long PLANE_REFRESH_INTERVAL_NS = 250_000_000L;
+  private static final long PLANE_SEARCH_INTERVAL_NS = 250_000_000L;
+
+  private final float[] viewMatrix = new float[16];
+  private final float[] planeNormal = new float[3];
+  private final float[] planePoint = new float[3];
+
+  private int viewWidth;
+  private int viewHeight;
+
+  private Plane plane;
+  private long planeRefreshNs;
+  private long planeSearchNs;
+
+  private boolean valid;
+  private float distanceMm;
+  private float tiltXDeg;
+  private float tiltYDeg;
+  private float angleDeg;
+
+  /** Sets the size of the view the hit test for a new plane is made in. */
+  public void setViewport(int width, int height) {
+    viewWidth = width;
+    viewHeight = height;
+  }
+
+  /**
+   * Updates the estimate for {@code frame}. Call once per frame after {@code Session#update()}.
+   *
+   * @return whether a distance and tilt are available for this frame.
+   */
+  public boolean update(Frame frame, Camera camera) {
+    valid = false;
+    if (camera.getTrackingState() != TrackingState.TRACKING) {
+      return false;
+    }
+    long timestamp = frame.getTimestamp();
+    if (!isPlaneUsable()) {
+      // Hit tests allocate, so look for a new plane only a few times per second.
+      if (planeSearchNs != 0 && timestamp - planeSearchNs < PLANE_SEARCH_INTERVAL_NS) {
+        return false;
+      }
+      planeSearchNs = timestamp;
+      plane = findCenterPlane(frame);
+      if (plane == null) {
+        return false;
+      }
+      refreshPlanePose(timestamp);
+    } else if (timestamp - planeRefreshNs >= PLANE_REFRESH_INTERVAL_NS) {
+      refreshPlanePose(timestamp);
+    }
+
+    camera.getViewMatrix(viewMatrix, 0);
+    float[] v = viewMatrix;
+    // The view matrix is [R | t] with the camera axes as rows of R; the camera sits at -R^T t.
+    float cameraX = -(v[0] * v[12] + v[1] * v[13] + v[2] * v[14]);
+    float cameraY = -(v[4] * v[12] + v[5] * v[13] + v[6] * v[14]);
+    float cameraZ = -(v[8] * v[12] + v[9] * v[13] + v[10] * v[14]);
+
+    float distance =
+        (cameraX - planePoint[0]) * planeNormal[0]
+            + (cameraY - planePoint[1]) * planeNormal[1]
+            + (cameraZ - planePoint[2]) * planeNormal[2];
+    if (distance <= 0f) {
+      // Camera is behind the plane; the plane is not what the camera is looking at.
+      return false;
+    }
+
+    // Plane normal in camera axes: right, up and backwards (the camera looks along -z).
+    float normalRight = v[0] * planeNormal[0] + v[4] * planeNormal[1] + v[8] * planeNormal[2];
+    float normalUp = v[1] * planeNormal[0] + v[5] * planeNormal[1] + v[9] * planeNormal[2];
+    float normalBack = v[2] * planeNormal[0] + v[6] * planeNormal[1] + v[10] * planeNormal[2];
+
+    distanceMm = distance * 1000f;
+    tiltXDeg = (float) Math.atan2(normalRight, normalBack) * RADIANS_TO_DEGREES;
+    tiltYDeg = (float) Math.atan2(normalUp, normalBack) * RADIANS_TO_DEGREES;
+    angleDeg = (float) Math.acos(Math.max(-1f, Math.min(1f, normalBack))) * RADIANS_TO_DEGREES;
+    valid = true;
+    return true;
+  }
+
+  private boolean isPlaneUsable() {
+    if (plane == null) {
+      return false;
+    }
+    if (plane.getSubsumedBy() != null) {
+      plane = plane.getSubsumedBy();
+    }
+    return plane.getTrackingState() == TrackingState.TRACKING;
+  }
+
+  /** Hit tests through the view centre for a tracked plane. */
+  private Plane findCenterPlane(Frame frame) {
+    if (viewWidth == 0 || viewHeight == 0) {
+      return null;
+    }
+    List<HitResult> hits = frame.hitTest(viewWidth / 2f, viewHeight / 2f);
+    for (int i = 0; i < hits.size(); i++) {
+      Trackable trackable = hits.get(i).getTrackable();
+      if (trackable instanceof Plane
+          && trackable.getTrackingState() == TrackingState.TRACKING
+          && ((Plane) trackable).isPoseInPolygon(hits.get(i).getHitPose())) {
+        return (Plane) trackable;
+      }
+    }
+    return null;
+  }
+
+  private void refreshPlanePose(long timestamp) {
+    Pose centerPose = plane.getCenterPose();
+    // The plane's local y axis is its normal.
+    centerPose.getTransformedAxis(1, 1.0f, planeNormal, 0);
+    planePoint[0] = centerPose.tx();
+    planePoint[1] = centerPose.ty();
+    planePoint[2] = centerPose.tz();
+    planeRefreshNs = timestamp;
+  }
+
+  /** Forgets the cached plane, e.g. when the session is reset. */
+  public void reset() {
+    plane = null;
+    planeSearchNs = 0;
+    valid = false;
+  }
+
+  /** Whether the last {@link #update} produced an estimate. */
+  public boolean isValid() {
+    return valid;
+  }
+
+  /** Distance from the camera to the plane along its normal, in millimeters. */
+  public float getDistanceMm() {
+    return distanceMm;
+  }
+
+  /** Tilt of the plane about the camera's vertical axis, in degrees, 0 when facing it. */
+  public float getTiltXDeg() {
+    return tiltXDeg;
+  }
+
+  /** Tilt of the plane about the camera's horizontal axis, in degrees, 0 when facing it. */
+  public float getTiltYDeg() {
+    return tiltYDeg;
+  }
+
+  /** Angle between the camera axis and the plane normal, in degrees. */
+  public float getAngleDeg() {
+    return angleDeg;
+  }
+}
@@ -0,0 +1,117 @@
+package com.google.ar.core.codelab.pose;
+
+import com.google.ar.core.Frame;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plane tracking state maintained incrementally from the planes ARCore updated in each frame.
+ *
+ * <p>Only {@code Frame#getUpdatedTrackables} is read per frame, so the cost follows the number of
+ * planes that changed rather than the number of planes seen in the whole session. Counts per
+ * tracking state and the largest tracking plane with its pose are kept up to date and read in
+ * constant time. Planes that stop tracking or are merged into another plane are dropped. Must be
+ * used on the GL thread.
+ */
+public final class PlaneRegistry {
+  private final Map<Plane, TrackingState> states = new HashMap<>();
+  private final int[] stateCounts = new int[TrackingState.values().length];
+
+  private Plane largestPlane;
+  private float largestArea;
+  private Pose largestPose;
+
+  /** Applies the plane changes of {@code frame}. Call once per frame after the session update. */
+  public void update(Frame frame) {
+    boolean largestLost = false;
+    for (Plane plane : frame.getUpdatedTrackables(Plane.class)) {
+      TrackingState state = plane.getTrackingState();
+      boolean removed = plane.getSubsumedBy() != null || state == TrackingState.STOPPED;
+      TrackingState previous = removed ? states.remove(plane) : states.put(plane, state);
+      if (previous != null) {
+        stateCounts[previous.ordinal()]--;
+      }
+      if (!removed) {
+        stateCounts[state.ordinal()]++;
+      }
+
+      boolean tracking = !removed && state == TrackingState.TRACKING;
+      if (plane.equals(largestPlane)) {
+        if (tracking) {
+          largestArea = area(plane);
+          largestPose = plane.getCenterPose();
+        } else {
+          largestLost = true;
+        }
+      } else if (tracking && area(plane) > largestArea) {
+        setLargest(plane);
+        largestLost = false;
+      }
+    }
+    if (largestLost) {
+      findLargest();
+    }
+  }
+
+  /** Picks the largest tracking plane from scratch; only needed when the current one is lost. */
+  private void findLargest() {
+    largestPlane = null;
+    largestArea = 0f;
+    largestPose = null;
+    for (Map.Entry<Plane, TrackingState> entry : states.entrySet()) {
+      if (entry.getValue() == TrackingState.TRACKING && area(entry.getKey()) > largestArea) {
+        setLargest(entry.getKey());
+      }
+    }
+  }
+
+  private void setLargest(Plane plane) {
+    largestPlane = plane;
+    largestArea = area(plane);
+    largestPose = plane.getCenterPose();
+  }
+
+  private static float area(Plane plane) {
+    return plane.getExtentX() * plane.getExtentZ();
+  }
+
+  /** Forgets every plane, e.g. when a new session is created. */
+  public void clear() {
+    states.clear();
+    for (int i = 0; i < stateCounts.length; i++) {
+      stateCounts[i] = 0;
+    }
+    largestPlane = null;
+    largestArea = 0f;
+    largestPose = null;
+  }
+
+  /** Number of known planes in {@code state}. */
+  public int getCount(TrackingState state) {
+    return stateCounts[state.ordinal()];
+  }
+
+  /** Whether at least one plane is currently tracking. */
+  public boolean hasTrackingPlane() {
+    return stateCounts[TrackingState.TRACKING.ordinal()] > 0;
+  }
+
+  /** Largest tracking plane by bounding rectangle area, or null if none is tracking. */
+  public Plane getLargestPlane() {
+    return largestPlane;
+  }
+
+  /** Centre pose of {@link #getLargestPlane()} as of its last update, or null. */
+  public Pose getLargestPlanePose() {
+    return largestPose;
+  }
+
+  /** Bounding rectangle area of {@link #getLargestPlane()} in square meters. */
+  public float getLargestPlaneArea() {
+    return largestArea;
+  }
+}
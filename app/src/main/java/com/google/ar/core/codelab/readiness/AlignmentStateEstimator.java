@@ -0,0 +1,299 @@
+package com.google.ar.core.codelab.readiness;
+
+/**
+ * Fuses the distance and tilt measurements into one filtered state, updated once per frame.
+ *
+ * <p>Distance and its rate of change are tracked by a constant velocity Kalman filter. The ROI
+ * depth and the plane-relative pose distance are both measurements of it, each with its own
+ * noise. Measurements that disagree by more than a few standard deviations are rejected as
+ * outliers; a run of rejections means the phone now looks at a different surface, and the filter
+ * restarts from the new measurement.
+ *
+ * <p>Tilt is tracked as roll and pitch in the display axes of {@link TiltFrame}; every tilt passed
+ * in must already be converted there, since depth, pose and IMU each measure in their own axes. The
+ * IMU attitude is relative to gravity rather than to the skin, so only its change between frames is
+ * used: it moves the predicted tilt as the phone turns. The skin plane tilt from depth or from the
+ * pose corrects it. Without any plane the IMU attitude itself is used, as if the skin were
+ * horizontal.
+ *
+ * <p>All state is in primitive fields, so nothing is allocated. Not thread safe; plain Java with
+ * the time passed in.
+ */
+public final class AlignmentStateEstimator {
+  private static final float NANOS_PER_SECOND = 1e9f;
+  // Longer gaps between frames restart the velocity estimate.
+  private static final float MAX_GAP_SECONDS = 0.5f;
+  private static final float OUTLIER_GATE_SIGMAS = 4f;
+  private static final int MAX_CONSECUTIVE_OUTLIERS = 5;
+  private static final float INITIAL_VELOCITY_STD_DEV = 500f;
+
+  // Noise model.
+  private float accelerationStdDev = 400f;
+  private float depthStdDevMm = 8f;
+  private float unconfidentDepthStdDevMm = 30f;
+  private float poseStdDevMm = 15f;
+  private float tiltProcessStdDevDegPerSecond = 2f;
+  private float planeTiltStdDevDeg = 1f;
+  private float imuTiltStdDevDeg = 2f;
+
+  private long lastTimestampNs;
+
+  // Distance state [distance, velocity] in mm and mm/s, with covariance.
+  private boolean hasDistance;
+  private float distance;
+  private float velocity;
+  private float p00;
+  private float p01;
+  private float p11;
+  private int consecutiveOutliers;
+  private long lastDepthTimestampNs = -1;
+
+  // Tilt state in display axes in degrees, with a shared variance and the IMU turn rate.
+  private boolean hasTilt;
+  private float roll;
+  private float pitch;
+  private float tiltVariance;
+  private float rollRate;
+  private float pitchRate;
+  private boolean hasImu;
+  private float lastImuRoll;
+  private float lastImuPitch;
+  private long lastPlaneTiltTimestampNs = -1;
+
+  /**
+   * Sets the distance noise model.
+   *
+   * @param accelerationStdDev expected hand acceleration in mm/s^2.
+   * @param depthStdDevMm noise of a confident ROI depth reading.
+   * @param unconfidentDepthStdDevMm noise of a ROI depth reading with low confidence.
+   * @param poseStdDevMm noise of the plane-relative pose distance.
+   */
+  public void setDistanceNoise(
+      float accelerationStdDev,
+      float depthStdDevMm,
+      float unconfidentDepthStdDevMm,
+      float poseStdDevMm) {
+    this.accelerationStdDev = accelerationStdDev;
+    this.depthStdDevMm = depthStdDevMm;
+    this.unconfidentDepthStdDevMm = unconfidentDepthStdDevMm;
+    this.poseStdDevMm = poseStdDevMm;
+  }
+
+  /**
+   * Sets the tilt noise model.
+   *
+   * @param processStdDevDegPerSecond drift of the skin tilt not explained by the IMU.
+   * @param planeStdDevDeg noise of a plane tilt reading.
+   * @param imuStdDevDeg noise of the IMU attitude when it is used as the tilt itself.
+   */
+  public void setTiltNoise(
+      float processStdDevDegPerSecond, float planeStdDevDeg, float imuStdDevDeg) {
+    this.tiltProcessStdDevDegPerSecond = processStdDevDegPerSecond;
+    this.planeTiltStdDevDeg = planeStdDevDeg;
+    this.imuTiltStdDevDeg = imuStdDevDeg;
+  }
+
+  /**
+   * Advances the state to {@code timestampNs} and applies the phone rotation since the last frame.
+   * Call once per frame before the measurement updates.
+   *
+   * @param imuValid whether the roll and pitch below are available.
+   * @param imuRollDeg IMU roll, converted to display axes with {@link TiltFrame#fromDevice}.
+   * @param imuPitchDeg IMU pitch, converted to display axes with {@link TiltFrame#fromDevice}.
+   */
+  public void predict(long timestampNs, boolean imuValid, float imuRollDeg, float imuPitchDeg) {
+    float dt = lastTimestampNs == 0 ? 0f : (timestampNs - lastTimestampNs) / NANOS_PER_SECOND;
+    lastTimestampNs = timestampNs;
+    if (dt < 0f || dt > MAX_GAP_SECONDS) {
+      // Too long without frames to extrapolate: keep the values but trust them much less.
+      dt = 0f;
+      velocity = 0f;
+      p11 = INITIAL_VELOCITY_STD_DEV * INITIAL_VELOCITY_STD_DEV;
+      hasImu = false;
+    }
+
+    if (hasDistance && dt > 0f) {
+      float q = accelerationStdDev * accelerationStdDev;
+      float dt2 = dt * dt;
+      distance += velocity * dt;
+      p00 += 2f * dt * p01 + dt2 * p11 + q * dt2 * dt2 / 4f;
+      p01 += dt * p11 + q * dt2 * dt / 2f;
+      p11 += q * dt2;
+    }
+
+    if (imuValid) {
+      if (hasImu && dt > 0f) {
+        float deltaRoll = imuRollDeg - lastImuRoll;
+        float deltaPitch = imuPitchDeg - lastImuPitch;
+        if (hasTilt) {
+          roll += deltaRoll;
+          pitch += deltaPitch;
+        }
+        rollRate = deltaRoll / dt;
+        pitchRate = deltaPitch / dt;
+      }
+      hasImu = true;
+      lastImuRoll = imuRollDeg;
+      lastImuPitch = imuPitchDeg;
+    } else {
+      hasImu = false;
+      rollRate = 0f;
+      pitchRate = 0f;
+    }
+    if (hasTilt && dt > 0f) {
+      tiltVariance += tiltProcessStdDevDegPerSecond * tiltProcessStdDevDegPerSecond * dt;
+    }
+  }
+
+  /**
+   * Applies a ROI depth reading. Repeated readings of the same depth frame are ignored, since depth
+   * usually arrives at a lower rate than camera frames.
+   *
+   * @param depthTimestampNs timestamp of the depth frame the reading came from.
+   * @param distanceMm ROI depth in millimeters, 0 if invalid.
+   * @param confident whether the depth confidence under the ROI is high.
+   */
+  public void updateDepthDistance(long depthTimestampNs, float distanceMm, boolean confident) {
+    if (depthTimestampNs == lastDepthTimestampNs || distanceMm <= 0f) {
+      return;
+    }
+    lastDepthTimestampNs = depthTimestampNs;
+    updateDistance(distanceMm, confident ? depthStdDevMm : unconfidentDepthStdDevMm);
+  }
+
+  /** Applies a plane-relative pose distance in millimeters. */
+  public void updatePoseDistance(float distanceMm) {
+    if (distanceMm > 0f) {
+      updateDistance(distanceMm, poseStdDevMm);
+    }
+  }
+
+  private void updateDistance(float measurement, float stdDev) {
+    float r = stdDev * stdDev;
+    if (!hasDistance) {
+      initializeDistance(measurement, r);
+      return;
+    }
+    float innovation = measurement - distance;
+    float s = p00 + r;
+    if (innovation * innovation > OUTLIER_GATE_SIGMAS * OUTLIER_GATE_SIGMAS * s) {
+      if (++consecutiveOutliers >= MAX_CONSECUTIVE_OUTLIERS) {
+        initializeDistance(measurement, r);
+      }
+      return;
+    }
+    consecutiveOutliers = 0;
+    float k0 = p00 / s;
+    float k1 = p01 / s;
+    distance += k0 * innovation;
+    velocity += k1 * innovation;
+    p11 -= k1 * p01;
+    p01 *= 1f - k0;
+    p00 *= 1f - k0;
+  }
+
+  private void initializeDistance(float measurement, float variance) {
+    hasDistance = true;
+    distance = measurement;
+    velocity = 0f;
+    p00 = variance;
+    p01 = 0f;
+    p11 = INITIAL_VELOCITY_STD_DEV * INITIAL_VELOCITY_STD_DEV;
+    consecutiveOutliers = 0;
+  }
+
+  /**
+   * Applies a skin plane tilt reading, from depth or from the pose, converted to display axes with
+   * {@link TiltFrame}. Repeated readings of the same frame are ignored.
+   */
+  public void updatePlaneTilt(long sampleTimestampNs, float rollDeg, float pitchDeg) {
+    if (sampleTimestampNs == lastPlaneTiltTimestampNs) {
+      return;
+    }
+    lastPlaneTiltTimestampNs = sampleTimestampNs;
+    updateTilt(rollDeg, pitchDeg, planeTiltStdDevDeg);
+  }
+
+  /** Uses the IMU attitude as the tilt, for frames without any plane. */
+  public void updateImuTilt() {
+    if (hasImu) {
+      updateTilt(lastImuRoll, lastImuPitch, imuTiltStdDevDeg);
+    }
+  }
+
+  private void updateTilt(float measuredRoll, float measuredPitch, float stdDev) {
+    float r = stdDev * stdDev;
+    if (!hasTilt) {
+      hasTilt = true;
+      roll = measuredRoll;
+      pitch = measuredPitch;
+      tiltVariance = r;
+      return;
+    }
+    float k = tiltVariance / (tiltVariance + r);
+    roll += k * (measuredRoll - roll);
+    pitch += k * (measuredPitch - pitch);
+    tiltVariance *= 1f - k;
+  }
+
+  /** Forgets all state, e.g. when tracking restarts. */
+  public void reset() {
+    hasDistance = false;
+    hasTilt = false;
+    hasImu = false;
+    lastTimestampNs = 0;
+    lastDepthTimestampNs = -1;
+    lastPlaneTiltTimestampNs = -1;
+    velocity = 0f;
+    rollRate = 0f;
+    pitchRate = 0f;
+  }
+
+  public boolean hasDistance() {
+    return hasDistance;
+  }
+
+  /** Filtered distance in millimeters. */
+  public float getDistanceMm() {
+    return distance;
+  }
+
+  /** Rate of change of the distance in mm/s; negative while approaching. */
+  public float getVelocityMmPerSecond() {
+    return velocity;
+  }
+
+  /** Standard deviation of {@link #getDistanceMm()}. */
+  public float getDistanceStdDevMm() {
+    return (float) Math.sqrt(Math.max(0f, p00));
+  }
+
+  /** Distance extrapolated {@code seconds} ahead with the current velocity. */
+  public float predictDistanceMm(float seconds) {
+    return distance + velocity * seconds;
+  }
+
+  public boolean hasTilt() {
+    return hasTilt;
+  }
+
+  /** Filtered roll relative to the skin in degrees, in the display axes of {@link TiltFrame}. */
+  public float getRollDeg() {
+    return roll;
+  }
+
+  /** Filtered pitch relative to the skin in degrees, in the display axes of {@link TiltFrame}. */
+  public float getPitchDeg() {
+    return pitch;
+  }
+
+  /** Roll extrapolated {@code seconds} ahead with the current IMU turn rate. */
+  public float predictRollDeg(float seconds) {
+    return roll + rollRate * seconds;
+  }
+
+  /** Pitch extrapolated {@code seconds} ahead with the current IMU turn rate. */
+  public float predictPitchDeg(float seconds) {
+    return pitch + pitchRate * seconds;
+  }
+}
@@ -0,0 +1,174 @@
+package com.google.ar.core.codelab.readiness;
+
+/**
+ * Decides when the phone is held well enough to capture the skin test image.
+ *
+ * <p>Fed once per frame with the distance, depth quality flags and the two tilt angles, it moves
+ * through {@link State}s and fires a single trigger once every condition has held for the dwell
+ * time. Each threshold has a hysteresis band: a condition is entered at its tolerance but only left
+ * once the reading moves past tolerance plus hysteresis, so noise around the edge does not reset
+ * the dwell timer. After triggering the engine stays in {@link State#TRIGGERED} until {@link
+ * #rearm()} is called, so the capture cannot fire twice.
+ *
+ * <p>Plain Java with the time passed in, so it can be driven by synthetic streams off device.
+ * {@link #update} must be called from one thread; {@link #rearm()} may be called from any thread.
+ */
+public final class CaptureReadinessEngine {
+
+  /** Readiness states, from furthest to closest to capture. */
+  public enum State {
+    /** No valid distance, or the skin is beyond the approach distance. */
+    SEARCHING,
+    /** Skin in view but not yet within capture distance. */
+    APPROACHING,
+    /** Within capture distance and level, but depth is not yet stable or confident. */
+    ALIGNED,
+    /** Every condition holds; waiting for the dwell time to pass. */
+    HOLDING,
+    /** Capture has fired. Stays here until {@link #rearm()}. */
+    TRIGGERED
+  }
+
+  private static final long NANOS_PER_MILLI = 1_000_000L;
+
+  private int approachDistanceMm = 1200;
+  private int captureDistanceMm = 700;
+  private int distanceHysteresisMm = 30;
+  private float rollToleranceDeg = 3f;
+  private float pitchToleranceDeg = 3f;
+  private float angleHysteresisDeg = 1f;
+  private long dwellNs = 400 * NANOS_PER_MILLI;
+
+  private State state = State.SEARCHING;
+  private long holdStartNs;
+  private float holdProgress;
+  private boolean triggerPending;
+  private volatile boolean rearmRequested;
+
+  /**
+   * Sets the distance thresholds.
+   *
+   * @param approachDistanceMm distance below which the skin counts as approached.
+   * @param captureDistanceMm distance at or below which capture is allowed.
+   * @param hysteresisMm how far past a threshold a reading must go before it counts as left.
+   */
+  public void setDistances(int approachDistanceMm, int captureDistanceMm, int hysteresisMm) {
+    this.approachDistanceMm = approachDistanceMm;
+    this.captureDistanceMm = captureDistanceMm;
+    this.distanceHysteresisMm = hysteresisMm;
+  }
+
+  /**
+   * Sets the per-axis tilt tolerances.
+   *
+   * @param rollToleranceDeg maximum absolute roll to become aligned.
+   * @param pitchToleranceDeg maximum absolute pitch to become aligned.
+   * @param hysteresisDeg extra tilt allowed on both axes before alignment is lost.
+   */
+  public void setTolerances(float rollToleranceDeg, float pitchToleranceDeg, float hysteresisDeg) {
+    this.rollToleranceDeg = rollToleranceDeg;
+    this.pitchToleranceDeg = pitchToleranceDeg;
+    this.angleHysteresisDeg = hysteresisDeg;
+  }
+
+  /** Time every condition must hold without interruption before capture fires. */
+  public void setDwellMillis(long dwellMillis) {
+    dwellNs = dwellMillis * NANOS_PER_MILLI;
+  }
+
+  /**
+   * Advances the state machine by one observation.
+   *
+   * @param timestampNs monotonic time of the observation in nanoseconds.
+   * @param distanceMm distance to the skin in millimeters, 0 if unknown.
+   * @param depthStable whether the distance has settled.
+   * @param depthConfident whether the depth under the ROI is trustworthy.
+   * @param rollDeg roll in degrees in the display axes of {@link TiltFrame}, 0 when level.
+   * @param pitchDeg pitch in degrees in the display axes of {@link TiltFrame}, 0 when level.
+   * @return the new state.
+   */
+  public State update(
+      long timestampNs,
+      int distanceMm,
+      boolean depthStable,
+      boolean depthConfident,
+      float rollDeg,
+      float pitchDeg) {
+    if (rearmRequested) {
+      rearmRequested = false;
+      state = State.SEARCHING;
+      triggerPending = false;
+    }
+    if (state == State.TRIGGERED) {
+      return state;
+    }
+
+    boolean engaged = state == State.ALIGNED || state == State.HOLDING;
+    boolean inCaptureRange =
+        distanceMm > 0
+            && distanceMm <= captureDistanceMm + (engaged ? distanceHysteresisMm : 0);
+    boolean inApproachRange =
+        distanceMm > 0
+            && distanceMm
+                <= approachDistanceMm + (state != State.SEARCHING ? distanceHysteresisMm : 0);
+    float angleSlack = engaged ? angleHysteresisDeg : 0f;
+    boolean level =
+        Math.abs(rollDeg) <= rollToleranceDeg + angleSlack
+            && Math.abs(pitchDeg) <= pitchToleranceDeg + angleSlack;
+
+    State next;
+    if (!inApproachRange) {
+      next = State.SEARCHING;
+    } else if (!inCaptureRange || !level) {
+      next = State.APPROACHING;
+    } else if (!depthStable || !depthConfident) {
+      next = State.ALIGNED;
+    } else {
+      next = State.HOLDING;
+    }
+
+    if (next == State.HOLDING) {
+      if (state != State.HOLDING) {
+        holdStartNs = timestampNs;
+      }
+      long held = timestampNs - holdStartNs;
+      holdProgress = dwellNs <= 0 ? 1f : Math.min(1f, (float) held / dwellNs);
+      if (held >= dwellNs) {
+        next = State.TRIGGERED;
+        triggerPending = true;
+      }
+    } else {
+      holdProgress = 0f;
+    }
+    state = next;
+    return state;
+  }
+
+  /** Current state, as returned by the last {@link #update}. */
+  public State getState() {
+    return state;
+  }
+
+  /** Fraction of the dwell time already held, 0 to 1. */
+  public float getHoldProgress() {
+    return holdProgress;
+  }
+
+  /**
+   * Returns true exactly once after the engine triggered, so the caller starts the capture once
+   * even if it checks on every frame.
+   */
+  public boolean consumeTrigger() {
+    boolean fired = triggerPending;
+    triggerPending = false;
+    return fired;
+  }
+
+  /**
+   * Allows the next capture, e.g. when returning to the measuring screen. Applied on the next
+   * {@link #update}.
+   */
+  public void rearm() {
+    rearmRequested = true;
+  }
+}
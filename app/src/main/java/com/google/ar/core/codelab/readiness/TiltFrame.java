@@ -0,0 +1,121 @@
+package com.google.ar.core.codelab.readiness;
+
+/**
+ * Converts tilt readings from the axes of their source into the display axes that {@link
+ * AlignmentStateEstimator} and {@link CaptureReadinessEngine} work in.
+ *
+ * <p>The common convention is that of the IMU in the natural portrait orientation, with the phone
+ * held screen up over the skin and the axes those of the display as the user sees it:
+ *
+ * <ul>
+ *   <li>roll is the tilt about the display's vertical axis, positive when the right edge of the
+ *       display is closer to the skin than the left edge;
+ *   <li>pitch is the tilt about the display's horizontal axis, positive when the top edge is closer
+ *       to the skin than the bottom edge.
+ * </ul>
+ *
+ * <p>Both are 0 when the phone is level. Equivalently, (roll, pitch) is the downhill direction of
+ * the phone in display (right, up) coordinates, which is what makes the conversions below plain
+ * quarter turns of a 2D vector:
+ *
+ * <ul>
+ *   <li>the depth image is in camera sensor axes (x right, y down), turned clockwise by the sensor
+ *       to display rotation relative to the display, and its slopes rise away from the phone;
+ *   <li>the IMU reports in device axes, turned counter-clockwise by the display rotation;
+ *   <li>the ARCore view matrix is already display oriented, but its tilts rise away from the phone.
+ * </ul>
+ *
+ * <p>Each {@code from*} call stores the converted roll and pitch, read back with {@link
+ * #getRollDeg()} and {@link #getPitchDeg()}. Nothing is allocated. Not thread safe.
+ */
+public final class TiltFrame {
+  // Clockwise quarter turns from depth image axes, and from device axes, to display axes.
+  private int imageTurns = 1;
+  private int deviceTurns;
+
+  private float roll;
+  private float pitch;
+
+  /**
+   * Sets the geometry. Call whenever the display geometry changes.
+   *
+   * @param cameraSensorToDisplayDeg rotation of the camera sensor relative to the display, one of
+   *     0, 90, 180 or 270; the depth image shares the sensor's axes.
+   * @param displayRotationDeg rotation of the display from the device's natural orientation, one
+   *     of 0, 90, 180 or 270.
+   */
+  public void setRotations(int cameraSensorToDisplayDeg, int displayRotationDeg) {
+    imageTurns = quarterTurns(cameraSensorToDisplayDeg);
+    // The display rotation turns the content counter-clockwise relative to the device.
+    deviceTurns = (4 - quarterTurns(displayRotationDeg)) % 4;
+  }
+
+  /**
+   * Converts a skin plane tilt measured from the depth image.
+   *
+   * @param tiltXDeg slope of the depth along the image x axis, positive when depth grows to the
+   *     right of the image.
+   * @param tiltYDeg slope of the depth along the image y axis, positive when depth grows towards
+   *     the bottom of the image.
+   */
+  public void fromDepthImage(float tiltXDeg, float tiltYDeg) {
+    // Downhill is where depth shrinks; in (right, up) image coordinates the y axis flips.
+    set(-tiltXDeg, tiltYDeg, imageTurns);
+  }
+
+  /**
+   * Converts an IMU attitude.
+   *
+   * @param rollDeg roll in device axes, positive when the device's right edge is lower.
+   * @param pitchDeg pitch in device axes, positive when the device's top edge is lower.
+   */
+  public void fromDevice(float rollDeg, float pitchDeg) {
+    set(rollDeg, pitchDeg, deviceTurns);
+  }
+
+  /**
+   * Converts a plane tilt measured in the display oriented camera axes of the ARCore view matrix.
+   *
+   * @param tiltXDeg angle of the plane normal towards the camera's right axis.
+   * @param tiltYDeg angle of the plane normal towards the camera's up axis.
+   */
+  public void fromView(float tiltXDeg, float tiltYDeg) {
+    // The normal leans away from the edge that is closer to the plane.
+    set(-tiltXDeg, -tiltYDeg, 0);
+  }
+
+  private void set(float x, float y, int clockwiseTurns) {
+    switch (clockwiseTurns) {
+      case 1:
+        roll = y;
+        pitch = -x;
+        break;
+      case 2:
+        roll = -x;
+        pitch = -y;
+        break;
+      case 3:
+        roll = -y;
+        pitch = x;
+        break;
+      default:
+        roll = x;
+        pitch = y;
+        break;
+    }
+  }
+
+  private static int quarterTurns(int degrees) {
+    return ((degrees / 90) % 4 + 4) % 4;
+  }
+
+  /** Roll of the last converted reading in degrees, see the class comment for the convention. */
+  public float getRollDeg() {
+    return roll;
+  }
+
+  /** Pitch of the last converted reading in degrees, see the class comment for the convention. */
+  public float getPitchDeg() {
+    return pitch;
+  }
+}
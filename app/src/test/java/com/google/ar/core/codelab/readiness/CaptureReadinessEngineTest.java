@@ -0,0 +1,155 @@
+package com.google.ar.core.codelab.readiness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.core.codelab.readiness.CaptureReadinessEngine.State;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Drives {@link CaptureReadinessEngine} with synthetic frame streams. */
+public final class CaptureReadinessEngineTest {
+  private static final long FRAME_NS = 33_000_000L;
+  private static final long DWELL_MS = 400;
+  private static final int APPROACH_MM = 1200;
+  private static final int CAPTURE_MM = 700;
+  private static final int DISTANCE_HYSTERESIS_MM = 30;
+  private static final float TOLERANCE_DEG = 3f;
+  private static final float ANGLE_HYSTERESIS_DEG = 1f;
+
+  private CaptureReadinessEngine engine;
+  private long timeNs;
+
+  @Before
+  public void setUp() {
+    engine = new CaptureReadinessEngine();
+    engine.setDistances(APPROACH_MM, CAPTURE_MM, DISTANCE_HYSTERESIS_MM);
+    engine.setTolerances(TOLERANCE_DEG, TOLERANCE_DEG, ANGLE_HYSTERESIS_DEG);
+    // Long enough that the hysteresis tests never trigger.
+    engine.setDwellMillis(60_000);
+    timeNs = 1_000_000_000L;
+  }
+
+  /** Feeds one frame, FRAME_NS after the previous one. */
+  private State frame(int distanceMm, boolean stable, float rollDeg, float pitchDeg) {
+    timeNs += FRAME_NS;
+    return engine.update(timeNs, distanceMm, stable, /*depthConfident=*/ true, rollDeg, pitchDeg);
+  }
+
+  private State frame(int distanceMm) {
+    return frame(distanceMm, /*stable=*/ true, 0f, 0f);
+  }
+
+  @Test
+  public void progressesFromSearchingToHolding() {
+    assertEquals(State.SEARCHING, frame(1500));
+    assertEquals(State.APPROACHING, frame(1000));
+    assertEquals(State.ALIGNED, frame(650, /*stable=*/ false, 0f, 0f));
+    assertEquals(State.HOLDING, frame(650));
+  }
+
+  @Test
+  public void captureDistanceHasHysteresis() {
+    // Entered at the threshold itself, not within the band above it.
+    assertEquals(State.APPROACHING, frame(CAPTURE_MM + 1));
+    assertEquals(State.HOLDING, frame(CAPTURE_MM));
+    // Kept within the band.
+    assertEquals(State.HOLDING, frame(CAPTURE_MM + DISTANCE_HYSTERESIS_MM));
+    // Left past the band, and not entered again until back at the threshold.
+    assertEquals(State.APPROACHING, frame(CAPTURE_MM + DISTANCE_HYSTERESIS_MM + 1));
+    assertEquals(State.APPROACHING, frame(CAPTURE_MM + DISTANCE_HYSTERESIS_MM / 2));
+    assertEquals(State.HOLDING, frame(CAPTURE_MM));
+  }
+
+  @Test
+  public void approachDistanceHasHysteresis() {
+    assertEquals(State.SEARCHING, frame(APPROACH_MM + 1));
+    assertEquals(State.APPROACHING, frame(APPROACH_MM));
+    assertEquals(State.APPROACHING, frame(APPROACH_MM + DISTANCE_HYSTERESIS_MM));
+    assertEquals(State.SEARCHING, frame(APPROACH_MM + DISTANCE_HYSTERESIS_MM + 1));
+    assertEquals(State.SEARCHING, frame(APPROACH_MM + DISTANCE_HYSTERESIS_MM / 2));
+  }
+
+  @Test
+  public void tiltHasHysteresis() {
+    assertEquals(State.APPROACHING, frame(650, true, TOLERANCE_DEG + 0.5f, 0f));
+    assertEquals(State.HOLDING, frame(650, true, TOLERANCE_DEG, 0f));
+    // Both axes get the extra slack once aligned, in either direction.
+    assertEquals(State.HOLDING, frame(650, true, -(TOLERANCE_DEG + 0.5f), 0f));
+    assertEquals(State.HOLDING, frame(650, true, 0f, TOLERANCE_DEG + ANGLE_HYSTERESIS_DEG));
+    assertEquals(
+        State.APPROACHING, frame(650, true, 0f, TOLERANCE_DEG + ANGLE_HYSTERESIS_DEG + 0.1f));
+    assertEquals(State.APPROACHING, frame(650, true, 0f, TOLERANCE_DEG + 0.5f));
+  }
+
+  @Test
+  public void triggersOnlyAfterDwell() {
+    engine.setDwellMillis(DWELL_MS);
+    long start = timeNs + FRAME_NS;
+    assertEquals(State.HOLDING, frame(650));
+    while (timeNs + FRAME_NS < start + DWELL_MS * 1_000_000L) {
+      assertEquals(State.HOLDING, frame(650));
+      assertFalse(engine.consumeTrigger());
+    }
+    assertTrue(engine.getHoldProgress() < 1f);
+    assertEquals(State.TRIGGERED, frame(650));
+    assertTrue(engine.consumeTrigger());
+  }
+
+  @Test
+  public void interruptionRestartsDwell() {
+    engine.setDwellMillis(DWELL_MS);
+    assertEquals(State.HOLDING, frame(650));
+    for (int i = 0; i < 10; i++) {
+      frame(650);
+    }
+    float progress = engine.getHoldProgress();
+    assertTrue(progress > 0f);
+    // One unstable frame drops out of HOLDING and resets the progress.
+    assertEquals(State.ALIGNED, frame(650, /*stable=*/ false, 0f, 0f));
+    assertEquals(0f, engine.getHoldProgress(), 0f);
+    assertEquals(State.HOLDING, frame(650));
+    assertTrue(engine.getHoldProgress() < progress);
+  }
+
+  @Test
+  public void triggersOnceUntilRearmed() {
+    engine.setDwellMillis(0);
+    assertEquals(State.TRIGGERED, frame(650));
+    assertTrue(engine.consumeTrigger());
+    assertFalse(engine.consumeTrigger());
+
+    // Stays triggered whatever the input, without firing again.
+    assertEquals(State.TRIGGERED, frame(0));
+    assertEquals(State.TRIGGERED, frame(650));
+    assertFalse(engine.consumeTrigger());
+
+    engine.rearm();
+    assertEquals(State.SEARCHING, frame(0));
+    assertEquals(State.TRIGGERED, frame(650));
+    assertTrue(engine.consumeTrigger());
+  }
+
+  @Test
+  public void rearmDropsUnconsumedTrigger() {
+    engine.setDwellMillis(0);
+    assertEquals(State.TRIGGERED, frame(650));
+    engine.rearm();
+    assertEquals(State.SEARCHING, frame(APPROACH_MM * 2));
+    assertFalse(engine.consumeTrigger());
+  }
+
+  @Test
+  public void dropoutFallsBackToSearching() {
+    assertEquals(State.HOLDING, frame(650));
+    assertEquals(State.SEARCHING, frame(0));
+    assertEquals(0f, engine.getHoldProgress(), 0f);
+
+    assertEquals(State.ALIGNED, frame(650, /*stable=*/ false, 0f, 0f));
+    assertEquals(State.SEARCHING, frame(0));
+
+    assertEquals(State.APPROACHING, frame(1000));
+    assertEquals(State.SEARCHING, frame(0));
+  }
+}
@@ -0,0 +1,78 @@
+package com.google.ar.core.codelab.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Time for {@link DepthRefiner} to refine one frame, at the depth image sizes ARCore delivers.
+ *
+ * <p>The synthetic frame is a tilted skin plane about 400 mm away in front of a background at about
+ * 900 mm, with sensor noise and about 5% invalid pixels, partly in small clusters, so both hole
+ * filling and the edge-preserving weights do real work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DepthRefinerBenchmark {
+  @Param({"160x120", "320x240", "640x480"})
+  public String size;
+
+  private final DepthRefiner refiner = new DepthRefiner();
+  private ShortBuffer samples;
+  private int width;
+  private int height;
+
+  @Setup
+  public void setUp() {
+    int separator = size.indexOf('x');
+    width = Integer.parseInt(size.substring(0, separator));
+    height = Integer.parseInt(size.substring(separator + 1));
+    samples =
+        ByteBuffer.allocateDirect(width * height * 2)
+            .order(ByteOrder.nativeOrder())
+            .asShortBuffer();
+
+    Random random = new Random(42);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int depthMm;
+        if (x < width * 3 / 4) {
+          depthMm = 400 + 40 * x / width + 20 * y / height;
+        } else {
+          depthMm = 900;
+        }
+        depthMm += random.nextInt(17) - 8;
+        samples.put(y * width + x, (short) depthMm);
+      }
+    }
+    int holes = width * height / 20;
+    for (int i = 0; i < holes; ) {
+      int x = random.nextInt(width - 2);
+      int y = random.nextInt(height - 2);
+      int clusterSize = random.nextInt(4) == 0 ? 3 : 1;
+      for (int dy = 0; dy < clusterSize; dy++) {
+        for (int dx = 0; dx < clusterSize; dx++) {
+          samples.put((y + dy) * width + x + dx, (short) 0);
+          i++;
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public short[] refine() {
+    samples.rewind();
+    return refiner.refine(samples, width, height);
+  }
+}
@@ -0,0 +1,87 @@
+package com.google.ar.core.codelab.build;
+
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Compiles every {@code .obj} file in {@link #getSourceDir()} to a {@code .mesh} file of the same
+ * name in {@link #getOutputDir()}, in the format described in {@link MeshCompiler}.
+ */
+public class MeshCompileTask extends DefaultTask {
+  private static final String OBJ_SUFFIX = ".obj";
+  private static final String MESH_SUFFIX = ".mesh";
+
+  private File sourceDir;
+  private File outputDir;
+
+  @InputDirectory
+  @PathSensitive(PathSensitivity.RELATIVE)
+  public File getSourceDir() {
+    return sourceDir;
+  }
+
+  public void setSourceDir(File sourceDir) {
+    this.sourceDir = sourceDir;
+  }
+
+  @OutputDirectory
+  public File getOutputDir() {
+    return outputDir;
+  }
+
+  public void setOutputDir(File outputDir) {
+    this.outputDir = outputDir;
+  }
+
+  @TaskAction
+  public void compile() {
+    File[] sources = sourceDir.listFiles((dir, name) -> name.endsWith(OBJ_SUFFIX));
+    if (sources == null) {
+      return;
+    }
+    for (File source : sources) {
+      String name = source.getName();
+      File target =
+          new File(outputDir, name.substring(0, name.length() - OBJ_SUFFIX.length()) + MESH_SUFFIX);
+      try {
+        compile(source, target);
+      } catch (IOException e) {
+        throw new GradleException("Failed to compile " + source + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  private static void compile(File source, File target) throws IOException {
+    Obj obj;
+    try (InputStream input = new FileInputStream(source)) {
+      obj = ObjReader.read(input);
+    }
+    // Triangulated, with unambiguous normals and texture coordinates, and single-indexed.
+    obj = ObjUtils.convertToRenderable(obj);
+
+    float[] positions = ObjData.getVerticesArray(obj);
+    float[] normals = obj.getNumNormals() > 0 ? ObjData.getNormalsArray(obj) : null;
+    float[] texCoords = obj.getNumTexCoords() > 0 ? ObjData.getTexCoordsArray(obj, 2) : null;
+    int[] indices = ObjData.getFaceVertexIndicesArray(obj, 3);
+
+    try (OutputStream output = new BufferedOutputStream(new FileOutputStream(target))) {
+      MeshCompiler.write(positions, normals, texCoords, indices, output);
+    }
+  }
+}
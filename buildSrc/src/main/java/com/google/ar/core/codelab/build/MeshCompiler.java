@@ -0,0 +1,268 @@
+package com.google.ar.core.codelab.build;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Converts a single-indexed triangle mesh to the binary mesh format the app loads at runtime.
+ *
+ * <p>The triangles are reordered for the GPU's post-transform vertex cache, the vertices are
+ * renumbered in order of first use so fetches are sequential, and the attributes are interleaved.
+ * The format is little endian:
+ *
+ * <pre>
+ *   int   magic        'MESH'
+ *   int   version      1
+ *   int   vertexCount
+ *   int   indexCount
+ *   int   vertexStride 32: float position[3], float normal[3], float texCoord[2]
+ *   int   indexSize    2: unsigned shorts
+ *   vertexCount * vertexStride bytes of vertices
+ *   indexCount * indexSize bytes of triangle list indices
+ * </pre>
+ *
+ * <p>{@code GpuResourceCache} in the app reads this layout; the two must change together.
+ */
+final class MeshCompiler {
+  static final int MAGIC = 'M' | 'E' << 8 | 'S' << 16 | 'H' << 24;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 24;
+  static final int VERTEX_STRIDE = 32;
+  static final int INDEX_SIZE = 2;
+  static final int MAX_VERTICES = 65536;
+
+  // Vertex cache optimization after Tom Forsyth, "Linear-Speed Vertex Cache Optimisation".
+  private static final int CACHE_SIZE = 32;
+  private static final float CACHE_DECAY_POWER = 1.5f;
+  private static final float LAST_TRIANGLE_SCORE = 0.75f;
+  private static final float VALENCE_BOOST_SCALE = 2.0f;
+  private static final float VALENCE_BOOST_POWER = 0.5f;
+
+  private MeshCompiler() {}
+
+  /**
+   * Writes a mesh.
+   *
+   * @param positions xyz per vertex.
+   * @param normals xyz per vertex, or null.
+   * @param texCoords uv per vertex, or null.
+   * @param indices triangle list.
+   * @throws IOException if the mesh is empty or has too many vertices for 16-bit indices.
+   */
+  static void write(
+      float[] positions, float[] normals, float[] texCoords, int[] indices, OutputStream output)
+      throws IOException {
+    int vertexCount = positions.length / 3;
+    if (vertexCount == 0 || indices.length < 3) {
+      throw new IOException("Mesh has no triangles.");
+    }
+    if (vertexCount > MAX_VERTICES) {
+      throw new IOException(
+          "Mesh has " + vertexCount + " vertices, at most " + MAX_VERTICES + " are supported.");
+    }
+    int[] optimized = optimizeVertexCache(indices, vertexCount);
+
+    // Renumber vertices in order of first use; unused vertices are dropped.
+    int[] newIndexOf = new int[vertexCount];
+    Arrays.fill(newIndexOf, -1);
+    int[] oldIndexOf = new int[vertexCount];
+    int usedCount = 0;
+    for (int i = 0; i < optimized.length; i++) {
+      int vertex = optimized[i];
+      if (newIndexOf[vertex] < 0) {
+        newIndexOf[vertex] = usedCount;
+        oldIndexOf[usedCount] = vertex;
+        usedCount++;
+      }
+      optimized[i] = newIndexOf[vertex];
+    }
+
+    ByteBuffer buffer =
+        ByteBuffer.allocate(
+                HEADER_SIZE + usedCount * VERTEX_STRIDE + optimized.length * INDEX_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(usedCount);
+    buffer.putInt(optimized.length);
+    buffer.putInt(VERTEX_STRIDE);
+    buffer.putInt(INDEX_SIZE);
+    for (int i = 0; i < usedCount; i++) {
+      int vertex = oldIndexOf[i];
+      putComponents(buffer, positions, vertex, 3);
+      putComponents(buffer, normals, vertex, 3);
+      putComponents(buffer, texCoords, vertex, 2);
+    }
+    for (int index : optimized) {
+      buffer.putShort((short) index);
+    }
+    output.write(buffer.array());
+  }
+
+  private static void putComponents(ByteBuffer buffer, float[] values, int vertex, int size) {
+    for (int i = 0; i < size; i++) {
+      int offset = vertex * size + i;
+      buffer.putFloat(values != null && offset < values.length ? values[offset] : 0f);
+    }
+  }
+
+  /** Returns the triangles of {@code indices} in an order that reuses cached vertices. */
+  static int[] optimizeVertexCache(int[] indices, int vertexCount) {
+    int triangleCount = indices.length / 3;
+
+    // Triangles using each vertex; the first remaining[v] entries are the ones not yet emitted.
+    int[] remaining = new int[vertexCount];
+    for (int index : indices) {
+      remaining[index]++;
+    }
+    int[] adjacencyStart = new int[vertexCount + 1];
+    for (int v = 0; v < vertexCount; v++) {
+      adjacencyStart[v + 1] = adjacencyStart[v] + remaining[v];
+    }
+    int[] adjacency = new int[indices.length];
+    int[] fill = new int[vertexCount];
+    for (int t = 0; t < triangleCount; t++) {
+      for (int k = 0; k < 3; k++) {
+        int v = indices[t * 3 + k];
+        adjacency[adjacencyStart[v] + fill[v]++] = t;
+      }
+    }
+
+    int[] cachePosition = new int[vertexCount];
+    Arrays.fill(cachePosition, -1);
+    float[] vertexScore = new float[vertexCount];
+    for (int v = 0; v < vertexCount; v++) {
+      vertexScore[v] = vertexScore(-1, remaining[v]);
+    }
+    float[] triangleScore = new float[triangleCount];
+    boolean[] emitted = new boolean[triangleCount];
+    for (int t = 0; t < triangleCount; t++) {
+      triangleScore[t] =
+          vertexScore[indices[t * 3]] + vertexScore[indices[t * 3 + 1]]
+              + vertexScore[indices[t * 3 + 2]];
+    }
+
+    int[] cache = new int[CACHE_SIZE + 3];
+    int[] nextCache = new int[CACHE_SIZE + 3];
+    int cacheCount = 0;
+    int[] output = new int[triangleCount * 3];
+    int scanStart = 0;
+
+    int best = bestTriangle(triangleScore, emitted, 0);
+    for (int emittedCount = 0; emittedCount < triangleCount; emittedCount++) {
+      emitted[best] = true;
+      for (int k = 0; k < 3; k++) {
+        int v = indices[best * 3 + k];
+        output[emittedCount * 3 + k] = v;
+        // Move the triangle behind the remaining ones in the vertex's list.
+        int start = adjacencyStart[v];
+        int last = start + remaining[v] - 1;
+        for (int i = start; i <= last; i++) {
+          if (adjacency[i] == best) {
+            adjacency[i] = adjacency[last];
+            adjacency[last] = best;
+            break;
+          }
+        }
+        remaining[v]--;
+      }
+
+      // The triangle's vertices move to the front of the cache, in order.
+      int nextCount = 0;
+      for (int k = 0; k < 3; k++) {
+        nextCache[nextCount++] = indices[best * 3 + k];
+      }
+      for (int i = 0; i < cacheCount; i++) {
+        int v = cache[i];
+        if (v != indices[best * 3] && v != indices[best * 3 + 1] && v != indices[best * 3 + 2]) {
+          nextCache[nextCount++] = v;
+        }
+      }
+      // Vertices pushed out of the cache lose their cache score.
+      for (int i = CACHE_SIZE; i < nextCount; i++) {
+        int v = nextCache[i];
+        cachePosition[v] = -1;
+        updateScore(
+            v, remaining, adjacency, adjacencyStart, indices, vertexScore, triangleScore, -1);
+      }
+      cacheCount = Math.min(nextCount, CACHE_SIZE);
+      int[] swap = cache;
+      cache = nextCache;
+      nextCache = swap;
+
+      // Best next triangle is one using a cached vertex.
+      best = -1;
+      float bestScore = -1f;
+      for (int i = 0; i < cacheCount; i++) {
+        int v = cache[i];
+        cachePosition[v] = i;
+        updateScore(
+            v, remaining, adjacency, adjacencyStart, indices, vertexScore, triangleScore, i);
+      }
+      for (int i = 0; i < cacheCount; i++) {
+        int v = cache[i];
+        for (int a = adjacencyStart[v]; a < adjacencyStart[v] + remaining[v]; a++) {
+          int t = adjacency[a];
+          if (triangleScore[t] > bestScore) {
+            bestScore = triangleScore[t];
+            best = t;
+          }
+        }
+      }
+      if (best < 0 && emittedCount + 1 < triangleCount) {
+        // Nothing adjacent is left; start again from the best remaining triangle.
+        while (emitted[scanStart]) {
+          scanStart++;
+        }
+        best = bestTriangle(triangleScore, emitted, scanStart);
+      }
+    }
+    return output;
+  }
+
+  private static void updateScore(
+      int v,
+      int[] remaining,
+      int[] adjacency,
+      int[] adjacencyStart,
+      int[] indices,
+      float[] vertexScore,
+      float[] triangleScore,
+      int cachePosition) {
+    float score = vertexScore(cachePosition, remaining[v]);
+    float delta = score - vertexScore[v];
+    vertexScore[v] = score;
+    for (int a = adjacencyStart[v]; a < adjacencyStart[v] + remaining[v]; a++) {
+      triangleScore[adjacency[a]] += delta;
+    }
+  }
+
+  private static int bestTriangle(float[] triangleScore, boolean[] emitted, int start) {
+    int best = -1;
+    for (int t = start; t < triangleScore.length; t++) {
+      if (!emitted[t] && (best < 0 || triangleScore[t] > triangleScore[best])) {
+        best = t;
+      }
+    }
+    return best;
+  }
+
+  private static float vertexScore(int cachePosition, int remainingTriangles) {
+    if (remainingTriangles == 0) {
+      return -1f;
+    }
+    float score = 0f;
+    if (cachePosition >= 3) {
+      float scaler = 1f / (CACHE_SIZE - 3);
+      score = (float) Math.pow(1f - (cachePosition - 3) * scaler, CACHE_DECAY_POWER);
+    } else if (cachePosition >= 0) {
+      // The last triangle's vertices are penalised so strips do not double back on themselves.
+      score = LAST_TRIANGLE_SCORE;
+    }
+    return score
+        + VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+  }
+}